@@ -0,0 +1,98 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Piston;
+import org.bukkit.block.data.type.PistonHead;
+import org.bukkit.block.data.type.TechnicalPiston;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Objects;
+
+/**
+ * In-memory stand-in for BlockData. Pistons and piston heads get their Piston/PistonHead interfaces
+ * with the properties the plugin reads and writes; every other material is a plain BlockData.
+ */
+final class FakeBlockData implements InvocationHandler {
+
+    private final Material material;
+    private BlockFace facing = BlockFace.NORTH;
+    private boolean extended;
+    private boolean isShort;
+    private TechnicalPiston.Type type = TechnicalPiston.Type.NORMAL;
+
+    private FakeBlockData(Material material) {
+        this.material = material;
+    }
+
+    static BlockData create(Material material) {
+        return wrap(new FakeBlockData(material));
+    }
+
+    private static BlockData wrap(FakeBlockData state) {
+        Class<?> type = switch (state.material) {
+            case PISTON, STICKY_PISTON -> Piston.class;
+            case PISTON_HEAD -> PistonHead.class;
+            default -> BlockData.class;
+        };
+        return (BlockData) Proxy.newProxyInstance(FakeBlockData.class.getClassLoader(), new Class<?>[]{type}, state);
+    }
+
+    private FakeBlockData copy() {
+        FakeBlockData copy = new FakeBlockData(material);
+        copy.facing = facing;
+        copy.extended = extended;
+        copy.isShort = isShort;
+        copy.type = type;
+        return copy;
+    }
+
+    private boolean sameState(FakeBlockData other) {
+        return material == other.material && facing == other.facing && extended == other.extended
+                && isShort == other.isShort && type == other.type;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getMaterial":
+                return material;
+            case "clone":
+                return wrap(copy());
+            case "getFacing":
+                return facing;
+            case "setFacing":
+                facing = (BlockFace) args[0];
+                return null;
+            case "isExtended":
+                return extended;
+            case "setExtended":
+                extended = (Boolean) args[0];
+                return null;
+            case "isShort":
+                return isShort;
+            case "setShort":
+                isShort = (Boolean) args[0];
+                return null;
+            case "getType":
+                return type;
+            case "setType":
+                type = (TechnicalPiston.Type) args[0];
+                return null;
+            case "getAsString":
+            case "toString":
+                return material + "[facing=" + facing + ",extended=" + extended + "]";
+            case "hashCode":
+                return Objects.hash(material, facing, extended, isShort, type);
+            case "equals":
+                // Same state, like CraftBlockData
+                return args[0] instanceof BlockData other && Proxy.isProxyClass(other.getClass())
+                        && Proxy.getInvocationHandler(other) instanceof FakeBlockData state && sameState(state);
+            default:
+                return FakeServer.defaultValue(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import io.papermc.paper.threadedregions.scheduler.RegionScheduler;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.Proxy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Installs just enough of a Server for the plugin's code to run outside Minecraft:
+ * Bukkit.createBlockData, an item factory for items without meta, a region scheduler that queues tasks
+ * until {@link #runScheduledTasks()} and a logger. Anything else returns a default value.
+ */
+final class FakeServer {
+
+    static final Logger LOGGER = Logger.getLogger("PistonUpdateReducer-bench");
+
+    private static final Queue<Runnable> SCHEDULED = new ConcurrentLinkedQueue<>();
+
+    private static Server server;
+
+    private FakeServer() {
+    }
+
+    /**
+     * Registers the fake server with Bukkit (once per JVM, Bukkit.setServer can't be called twice).
+     */
+    static synchronized Server install() {
+        if (server == null) {
+            ItemFactory itemFactory = itemFactory();
+            RegionScheduler regionScheduler = regionScheduler();
+            server = (Server) Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[]{Server.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "createBlockData" -> args.length == 1 && args[0] instanceof Material material
+                                ? FakeBlockData.create(material) : null;
+                        case "getItemFactory" -> itemFactory;
+                        case "getRegionScheduler" -> regionScheduler;
+                        case "getLogger" -> LOGGER;
+                        case "getName", "getVersion", "getBukkitVersion", "toString" -> "FakeServer";
+                        case "isPrimaryThread" -> true;
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        default -> defaultValue(method.getReturnType());
+                    });
+            Bukkit.setServer(server);
+        }
+        return server;
+    }
+
+    /**
+     * @return A plugin stand-in that only provides a logger and the fake server.
+     */
+    static Plugin plugin() {
+        Server installed = install();
+        return (Plugin) Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[]{Plugin.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getLogger" -> LOGGER;
+                    case "getServer" -> installed;
+                    case "getName", "toString" -> "PistonUpdateReducer";
+                    case "isEnabled" -> true;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    /**
+     * Runs the region tasks scheduled so far, delays are ignored.
+     *
+     * @return Number of tasks run.
+     */
+    static int runScheduledTasks() {
+        int run = 0;
+        Runnable task;
+        while ((task = SCHEDULED.poll()) != null) {
+            task.run();
+            run++;
+        }
+        return run;
+    }
+
+    // Items never have meta, so every stack of a material is similar to the others
+    private static ItemFactory itemFactory() {
+        return (ItemFactory) Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[]{ItemFactory.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> args.length == 2 ? args[0] == args[1] : proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RegionScheduler regionScheduler() {
+        return (RegionScheduler) Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[]{RegionScheduler.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "execute" -> SCHEDULED.add((Runnable) args[args.length - 1]);
+                        case "run", "runDelayed" -> {
+                            for (Object arg : args) {
+                                if (arg instanceof Consumer<?> consumer) {
+                                    SCHEDULED.add(() -> ((Consumer<Object>) consumer).accept(null));
+                                }
+                            }
+                        }
+                        case "hashCode" -> {
+                            return System.identityHashCode(proxy);
+                        }
+                        case "equals" -> {
+                            return proxy == args[0];
+                        }
+                        default -> {
+                        }
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,171 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.inventory.ItemStack;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * In-memory stand-in for a World: every chunk is loaded, unset blocks are air, and Block handles are
+ * cached per position so repeated lookups of the same block don't allocate.
+ * Blocks drop one item of their own type, dropped items are only recorded.
+ */
+final class FakeWorld implements InvocationHandler {
+
+    private final World world;
+    private final UUID uid = UUID.randomUUID();
+    private final LongObjectMap<BlockData> blocks = new LongObjectMap<>(1024);
+    private final LongObjectMap<Block> handles = new LongObjectMap<>(1024);
+    private final BlockData air = FakeBlockData.create(Material.AIR);
+    private final List<DroppedItem> dropped = new ArrayList<>();
+
+    FakeWorld() {
+        world = (World) Proxy.newProxyInstance(FakeWorld.class.getClassLoader(), new Class<?>[]{World.class}, this);
+    }
+
+    World world() {
+        return world;
+    }
+
+    Block blockAt(int x, int y, int z) {
+        long key = BlockKeys.blockKey(x, y, z);
+        Block block = handles.get(key);
+        if (block == null) {
+            block = (Block) Proxy.newProxyInstance(FakeWorld.class.getClassLoader(), new Class<?>[]{Block.class}, new FakeBlock(x, y, z));
+            handles.put(key, block);
+        }
+        return block;
+    }
+
+    BlockData dataAt(int x, int y, int z) {
+        BlockData data = blocks.get(BlockKeys.blockKey(x, y, z));
+        return data != null ? data : air;
+    }
+
+    /**
+     * Sets a block directly (no copy), used to build and reset benchmark scenarios.
+     */
+    void set(int x, int y, int z, BlockData data) {
+        if (data.getMaterial() == Material.AIR) {
+            blocks.remove(BlockKeys.blockKey(x, y, z));
+        } else {
+            blocks.put(BlockKeys.blockKey(x, y, z), data);
+        }
+    }
+
+    /**
+     * @return Items dropped into the world so far, in order.
+     */
+    List<DroppedItem> dropped() {
+        return dropped;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "dropItem":
+            case "dropItemNaturally":
+                dropped.add(new DroppedItem((Location) args[0], ((ItemStack) args[1]).clone()));
+                return null;
+            case "isChunkLoaded":
+                return Boolean.TRUE;
+            case "getBlockAt":
+                if (args.length == 1) {
+                    Location location = (Location) args[0];
+                    return blockAt(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+                }
+                return blockAt((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+            case "getUID":
+                return uid;
+            case "getName":
+            case "toString":
+                return "fake_world";
+            case "getMinHeight":
+                return -64;
+            case "getMaxHeight":
+                return 320;
+            case "hashCode":
+                return uid.hashCode();
+            case "equals":
+                return proxy == args[0];
+            default:
+                return FakeServer.defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Stand-in for a Block handle at a fixed position.
+     */
+    private final class FakeBlock implements InvocationHandler {
+        private final int x;
+        private final int y;
+        private final int z;
+
+        FakeBlock(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getType":
+                    return dataAt(x, y, z).getMaterial();
+                case "getBlockData":
+                    return dataAt(x, y, z).clone(); // Bukkit hands out copies as well
+                case "getDrops":
+                    Material type = dataAt(x, y, z).getMaterial();
+                    return type.isAir() ? List.of() : List.of(new ItemStack(type));
+                case "setType":
+                    set(x, y, z, FakeBlockData.create((Material) args[0]));
+                    return null;
+                case "setBlockData":
+                    set(x, y, z, ((BlockData) args[0]).clone());
+                    return null;
+                case "getX":
+                    return x;
+                case "getY":
+                    return y;
+                case "getZ":
+                    return z;
+                case "getWorld":
+                    return world;
+                case "getRelative":
+                    if (args.length == 1) {
+                        BlockFace face = (BlockFace) args[0];
+                        return blockAt(x + face.getModX(), y + face.getModY(), z + face.getModZ());
+                    }
+                    return blockAt(x + (Integer) args[0], y + (Integer) args[1], z + (Integer) args[2]);
+                case "getLocation":
+                    return new Location(world, x, y, z);
+                case "getBlockKey":
+                    return BlockKeys.blockKey(x, y, z);
+                case "toString":
+                    return "FakeBlock{" + x + ", " + y + ", " + z + "}";
+                case "hashCode":
+                    return Long.hashCode(BlockKeys.blockKey(x, y, z));
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return FakeServer.defaultValue(method.getReturnType());
+            }
+        }
+    }
+
+    /**
+     * An item stack dropped at a location through World.dropItem.
+     */
+    record DroppedItem(Location location, ItemStack stack) {
+    }
+}
@@ -0,0 +1,161 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Piston;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Piston events per second through {@link PistonHandler} against an in-memory world.
+ * Run with {@code ./gradlew jmh}; the gc profiler (enabled in build.gradle) reports bytes allocated per operation.
+ * <p>
+ * Every operation first puts its scenario back into the starting state (a handful of map writes)
+ * and then fires the same event at the handler. The stand-ins are dynamic proxies, so absolute allocation
+ * numbers include some harness overhead; compare runs against each other rather than against zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PistonHandlerBenchmark {
+
+    // Coordinates stay inside [-128, 127] so the proxies' boxed ints come from the Integer cache
+    private static final int Y = 64;
+
+    private FakeWorld world;
+    private PistonHandler handler;
+
+    private Scenario bambooPush;
+    private Scenario twelveBlockPush;
+    private Scenario retractIntoAir;
+    private Scenario nonTargetPush;
+
+    private BlockPistonExtendEvent bambooPushEvent;
+    private BlockPistonExtendEvent twelveBlockPushEvent;
+    private BlockPistonRetractEvent retractIntoAirEvent;
+    private BlockPistonExtendEvent nonTargetPushEvent;
+
+    @Setup
+    public void setup() {
+        FakeServer.install();
+        world = new FakeWorld();
+        handler = new PistonHandler(FakeServer.plugin(), new PistonStates(), new RateLimitedLogger(FakeServer.LOGGER, 30));
+        handler.applySettings(new ReducerSettings(
+                // Cobblestone is a target here so the 12-block line below is a reduced move
+                new PistonRules(EnumSet.of(Material.BAMBOO, Material.SUGAR_CANE, Material.CACTUS, Material.AIR, Material.COBBLESTONE), List.of()),
+                null, false, 5, null, null, null, null, null, false, null, null, null, BukkitBlockWriter.INSTANCE));
+
+        // Piston facing east extending into bamboo: vanilla breaks bamboo instead of moving it, so nothing is in the moved list
+        bambooPush = new Scenario(0, false);
+        bambooPush.place(1, Material.BAMBOO);
+        bambooPushEvent = new BlockPistonExtendEvent(bambooPush.piston(), Collections.emptyList(), BlockFace.EAST);
+
+        // Piston pushing a 12-block cobblestone line into bamboo (broken by the push, not moved)
+        twelveBlockPush = new Scenario(8, false);
+        for (int i = 1; i <= 12; i++) {
+            twelveBlockPush.place(i, Material.COBBLESTONE);
+        }
+        twelveBlockPush.place(13, Material.BAMBOO);
+        twelveBlockPushEvent = new BlockPistonExtendEvent(twelveBlockPush.piston(), twelveBlockPush.line(1, 12), BlockFace.EAST);
+
+        // Extended piston retracting into air (the server has already removed the head when the event fires)
+        retractIntoAir = new Scenario(16, true);
+        retractIntoAirEvent = new BlockPistonRetractEvent(retractIntoAir.piston(), Collections.emptyList(), BlockFace.EAST);
+
+        // Piston pushing stone: not a target, handled by the fast path that leaves it to vanilla
+        nonTargetPush = new Scenario(24, false);
+        nonTargetPush.place(1, Material.STONE);
+        nonTargetPushEvent = new BlockPistonExtendEvent(nonTargetPush.piston(), nonTargetPush.line(1, 1), BlockFace.EAST);
+    }
+
+    @Benchmark
+    public boolean singleBambooPush() {
+        bambooPush.reset();
+        bambooPushEvent.setCancelled(false);
+        handler.onPistonExtend(bambooPushEvent);
+        return bambooPushEvent.isCancelled();
+    }
+
+    @Benchmark
+    public boolean twelveBlockPush() {
+        twelveBlockPush.reset();
+        twelveBlockPushEvent.setCancelled(false);
+        handler.onPistonExtend(twelveBlockPushEvent);
+        return twelveBlockPushEvent.isCancelled();
+    }
+
+    @Benchmark
+    public boolean retractIntoAir() {
+        retractIntoAir.reset();
+        retractIntoAirEvent.setCancelled(false);
+        handler.onPistonRetract(retractIntoAirEvent);
+        return retractIntoAirEvent.isCancelled();
+    }
+
+    @Benchmark
+    public boolean nonTargetFastPath() {
+        // Nothing is moved on this path, so no reset is needed
+        nonTargetPushEvent.setCancelled(false);
+        handler.onPistonExtend(nonTargetPushEvent);
+        return nonTargetPushEvent.isCancelled();
+    }
+
+    /**
+     * One east-facing piston at (0, Y, z) and the blocks in front of it, with the starting state kept for resets.
+     */
+    private final class Scenario {
+        private final int z;
+        private final List<BlockData> initial = new ArrayList<>();
+
+        Scenario(int z, boolean extended) {
+            this.z = z;
+            Piston piston = (Piston) FakeBlockData.create(Material.STICKY_PISTON);
+            piston.setFacing(BlockFace.EAST);
+            piston.setExtended(extended);
+            initial.add(piston);
+            // Leave room for a 12-block push plus the block it moves into
+            while (initial.size() < 15) {
+                initial.add(FakeBlockData.create(Material.AIR));
+            }
+            reset();
+        }
+
+        void place(int offset, Material material) {
+            initial.set(offset, FakeBlockData.create(material));
+            world.set(offset, Y, z, initial.get(offset));
+        }
+
+        Block piston() {
+            return world.blockAt(0, Y, z);
+        }
+
+        List<Block> line(int from, int to) {
+            List<Block> blocks = new ArrayList<>();
+            for (int i = from; i <= to; i++) {
+                blocks.add(world.blockAt(i, Y, z));
+            }
+            return blocks;
+        }
+
+        void reset() {
+            for (int i = 0; i < initial.size(); i++) {
+                world.set(i, Y, z, initial.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a trace file written by {@link PistonTraceRecorder} into memory.
+ * A record cut off at the end of the file (the server stopped mid-write) ends the trace.
+ */
+final class PistonTraceReader {
+
+    /**
+     * One recorded piston event. Moved blocks are given as materials and offsets from the piston,
+     * {@code offsets} holds dx, dy, dz per moved block. {@code action} is what the rules decided,
+     * {@code outcome} what the plugin actually did (null in version 1 traces, which didn't record it).
+     */
+    record Event(long nanos, String world, long pistonKey, BlockFace direction, boolean extending, boolean sticky,
+                 PistonAction action, PistonAction outcome, Material trigger, Material[] moved, byte[] offsets) {
+    }
+
+    /**
+     * @param unknownMaterials Material names in the trace this server version doesn't have (replayed as stone).
+     */
+    record Trace(long startMillis, List<Event> events, int unknownMaterials) {
+    }
+
+    private PistonTraceReader() {
+    }
+
+    static Trace read(File file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.remaining() < 14 || in.getInt() != PistonTraceRecorder.MAGIC) {
+            throw new IOException(file + " is not a piston trace");
+        }
+        short version = in.getShort();
+        if (version < 1 || version > PistonTraceRecorder.VERSION) {
+            throw new IOException(file + " has trace version " + version + ", expected 1 to " + PistonTraceRecorder.VERSION);
+        }
+        long startMillis = in.getLong();
+
+        Map<Integer, String> worlds = new HashMap<>();
+        Map<Integer, Material> materials = new HashMap<>();
+        PistonAction[] actions = PistonAction.values();
+        List<Event> events = new ArrayList<>();
+        int unknown = 0;
+        try {
+            while (in.hasRemaining()) {
+                byte tag = in.get();
+                switch (tag) {
+                    case PistonTraceRecorder.TAG_WORLD -> worlds.put((int) in.getShort(), readName(in));
+                    case PistonTraceRecorder.TAG_MATERIAL -> {
+                        int id = in.getShort();
+                        Material material = Material.matchMaterial(readName(in));
+                        if (material == null) {
+                            material = Material.STONE;
+                            unknown++;
+                        }
+                        materials.put(id, material);
+                    }
+                    case PistonTraceRecorder.TAG_EVENT -> {
+                        long nanos = in.getLong();
+                        String world = worlds.get((int) in.getShort());
+                        long pistonKey = in.getLong();
+                        BlockFace direction = PistonTraceRecorder.FACES[in.get()];
+                        int flags = in.get();
+                        PistonAction action = actions[in.get()];
+                        PistonAction outcome = version >= 2 ? actions[in.get()] : null;
+                        Material trigger = materials.get((int) in.getShort());
+                        int count = in.get() & 0xFF;
+                        Material[] moved = new Material[count];
+                        byte[] offsets = new byte[count * 3];
+                        for (int i = 0; i < count; i++) {
+                            moved[i] = materials.get((int) in.getShort());
+                            in.get(offsets, i * 3, 3);
+                        }
+                        events.add(new Event(nanos, world, pistonKey, direction, (flags & PistonTraceRecorder.FLAG_EXTENDING) != 0,
+                                (flags & PistonTraceRecorder.FLAG_STICKY) != 0, action, outcome, trigger, moved, offsets));
+                    }
+                    default -> throw new IOException("Unknown record " + tag + " at byte " + (in.position() - 1) + " of " + file);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // Last record was cut off, keep everything before it
+        }
+        return new Trace(startMillis, events, unknown);
+    }
+
+    private static String readName(ByteBuffer in) {
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,227 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Piston;
+import org.bukkit.event.block.BlockPistonEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace recorded by {@link PistonTraceRecorder} through {@link PistonHandler} against in-memory worlds,
+ * as fast as possible, and prints the throughput. Run with {@code ./gradlew replayTrace -Ptrace=<file>}.
+ * <p>
+ * Only the blocks of each event are rebuilt before it fires (the piston, its head spot, the moved blocks and
+ * where they go), the rest of the world is whatever earlier events left behind. Timing includes that setup and
+ * the event objects, so compare replays against each other rather than against the live server.
+ * The first pass also checks every event's decision against the recorded one; with different target blocks
+ * or without the server's rules, mismatches are expected.
+ * Clock detection, the chunk limiter, batching and drop aggregation need the server's scheduler or clock
+ * and are not replayed.
+ */
+final class TraceReplay {
+
+    private static final String USAGE = """
+            Usage: TraceReplay <trace file> [options]
+              --targets A,B,...   target blocks (default BAMBOO,SUGAR_CANE,CACTUS,AIR)
+              --selective         neighbor-updates: SELECTIVE
+              --plan-cache <n>    enable the move plan cache for up to n pistons
+              --passes <n>        measured passes over the trace (default 5)
+              --warmup <n>        unmeasured passes before them (default 2)""";
+
+    private final Map<String, FakeWorld> worlds = new HashMap<>();
+    private final BlockData air = FakeBlockData.create(Material.AIR);
+    private final Map<Material, BlockData> blockData = new EnumMap<>(Material.class);
+    private final List<Block> movedBlocks = new ArrayList<>();
+
+    private TraceReplay() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args[0].isBlank()) {
+            System.out.println(USAGE);
+            return;
+        }
+        Set<Material> targets = EnumSet.of(Material.BAMBOO, Material.SUGAR_CANE, Material.CACTUS, Material.AIR);
+        boolean selective = false;
+        int planCache = 0;
+        int passes = 5;
+        int warmup = 2;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--targets" -> {
+                    targets = EnumSet.noneOf(Material.class);
+                    for (String name : args[++i].split(",")) {
+                        Material material = Material.matchMaterial(name.trim());
+                        if (material == null) {
+                            System.out.println("Unknown material: " + name);
+                            return;
+                        }
+                        targets.add(material);
+                    }
+                }
+                case "--selective" -> selective = true;
+                case "--plan-cache" -> planCache = Integer.parseInt(args[++i]);
+                case "--passes" -> passes = Math.max(1, Integer.parseInt(args[++i]));
+                case "--warmup" -> warmup = Math.max(0, Integer.parseInt(args[++i]));
+                default -> {
+                    System.out.println("Unknown option: " + args[i] + "\n" + USAGE);
+                    return;
+                }
+            }
+        }
+
+        PistonTraceReader.Trace trace = PistonTraceReader.read(new File(args[0]));
+        List<PistonTraceReader.Event> events = trace.events();
+        if (events.isEmpty()) {
+            System.out.println("The trace has no events.");
+            return;
+        }
+        double recordedSeconds = events.get(events.size() - 1).nanos() / 1e9;
+        System.out.printf(Locale.ROOT, "%d events over %.1fs (%.1f events/s on the server)%n",
+                events.size(), recordedSeconds, recordedSeconds > 0 ? events.size() / recordedSeconds : 0);
+        if (trace.unknownMaterials() > 0) {
+            System.out.println(trace.unknownMaterials() + " materials unknown to this API version are replayed as STONE.");
+        }
+
+        FakeServer.install();
+        PistonRules rules = new PistonRules(targets, List.of());
+        MovePlanCache plans = planCache > 0 ? new MovePlanCache(planCache) : null;
+        PistonHandler handler = new PistonHandler(FakeServer.plugin(), new PistonStates(), new RateLimitedLogger(FakeServer.LOGGER, 30));
+        handler.applySettings(new ReducerSettings(rules, null, false, 5, null, null, null, null, null, selective, plans, null, null, BukkitBlockWriter.INSTANCE));
+
+        TraceReplay replay = new TraceReplay();
+        replay.checkDecisions(events, rules);
+        for (int i = 0; i < warmup; i++) {
+            replay.run(events, handler);
+        }
+        double total = 0;
+        for (int i = 1; i <= passes; i++) {
+            long start = System.nanoTime();
+            int cancelled = replay.run(events, handler);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            total += seconds;
+            System.out.printf(Locale.ROOT, "pass %d: %.0f events/s, %d cancelled%n", i, events.size() / seconds, cancelled);
+        }
+        System.out.printf(Locale.ROOT, "mean: %.0f events/s, %.2f us/event%n",
+                events.size() * passes / total, total * 1e6 / ((double) events.size() * passes));
+        if (plans != null) {
+            System.out.println("move plans: " + plans.hits() + " hits, " + plans.misses() + " misses, "
+                    + plans.invalidations() + " invalidated, " + plans.evictions() + " evicted");
+        }
+    }
+
+    /**
+     * Compares the replayed decision of every event with the recorded one and prints a summary.
+     */
+    private void checkDecisions(List<PistonTraceReader.Event> events, PistonRules rules) {
+        Map<PistonAction, Integer> recorded = new EnumMap<>(PistonAction.class);
+        Map<PistonAction, Integer> replayed = new EnumMap<>(PistonAction.class);
+        Map<PistonAction, Integer> outcomes = new EnumMap<>(PistonAction.class); // What the server actually did
+        int mismatches = 0;
+        for (PistonTraceReader.Event event : events) {
+            Block piston = build(event);
+            PistonAction action = rules.decide(piston.getWorld(), piston.getX(), piston.getY(), piston.getZ(),
+                    event.trigger(), movedBlocks);
+            recorded.merge(event.action(), 1, Integer::sum);
+            replayed.merge(action, 1, Integer::sum);
+            if (event.outcome() != null) {
+                outcomes.merge(event.outcome(), 1, Integer::sum);
+            }
+            if (action != event.action()) {
+                mismatches++;
+            }
+        }
+        System.out.println("recorded actions: " + recorded + ", replayed: " + replayed + ", " + mismatches + " differ");
+        if (!outcomes.isEmpty()) {
+            System.out.println("recorded outcomes: " + outcomes);
+        }
+    }
+
+    /**
+     * Fires every event at the handler once.
+     *
+     * @return How many events ended up cancelled.
+     */
+    private int run(List<PistonTraceReader.Event> events, PistonHandler handler) {
+        int cancelled = 0;
+        for (PistonTraceReader.Event event : events) {
+            Block piston = build(event);
+            // Each event gets its own list, as on the server
+            List<Block> blocks = new ArrayList<>(movedBlocks);
+            BlockPistonEvent fired;
+            if (event.extending()) {
+                BlockPistonExtendEvent extend = new BlockPistonExtendEvent(piston, blocks, event.direction());
+                handler.onPistonExtend(extend);
+                fired = extend;
+            } else {
+                BlockPistonRetractEvent retract = new BlockPistonRetractEvent(piston, blocks, event.direction());
+                handler.onPistonRetract(retract);
+                fired = retract;
+            }
+            if (fired.isCancelled()) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Puts the event's blocks into its world as they were when it fired and fills {@link #movedBlocks}.
+     *
+     * @return The piston block.
+     */
+    private Block build(PistonTraceReader.Event event) {
+        FakeWorld world = worlds.computeIfAbsent(event.world(), name -> new FakeWorld());
+        int x = BlockKeys.blockX(event.pistonKey());
+        int y = BlockKeys.blockY(event.pistonKey());
+        int z = BlockKeys.blockZ(event.pistonKey());
+        BlockFace direction = event.direction();
+
+        // An extending piston isn't extended yet, a retracting one still is (its head is already gone)
+        Piston piston = (Piston) FakeBlockData.create(event.sticky() ? Material.STICKY_PISTON : Material.PISTON);
+        piston.setFacing(direction);
+        piston.setExtended(!event.extending());
+        world.set(x, y, z, piston);
+
+        // The head spot holds the block the event was judged by, unless moved blocks fill it below
+        int hx = x + direction.getModX();
+        int hy = y + direction.getModY();
+        int hz = z + direction.getModZ();
+        world.set(hx, hy, hz, event.extending() || event.moved().length == 0 ? data(event.trigger()) : air);
+
+        movedBlocks.clear();
+        byte[] offsets = event.offsets();
+        for (int i = 0; i < event.moved().length; i++) {
+            int bx = x + offsets[i * 3];
+            int by = y + offsets[i * 3 + 1];
+            int bz = z + offsets[i * 3 + 2];
+            // Whatever a block moves into starts out empty, unless another moved block is there
+            world.set(bx + direction.getModX(), by + direction.getModY(), bz + direction.getModZ(), air);
+            movedBlocks.add(world.blockAt(bx, by, bz));
+        }
+        for (int i = 0; i < event.moved().length; i++) {
+            Block block = movedBlocks.get(i);
+            world.set(block.getX(), block.getY(), block.getZ(), data(event.moved()[i]));
+        }
+        return world.blockAt(x, y, z);
+    }
+
+    // Shared per material: the world stores it as is, but every write through a Block copies
+    private BlockData data(Material material) {
+        return blockData.computeIfAbsent(material, FakeBlockData::create);
+    }
+}
@@ -0,0 +1,63 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the heap bytes the current thread allocates while handling piston events, using the JVM's
+ * per-thread allocation counter (com.sun.management.ThreadMXBean). Meant for verifying the hot path,
+ * so it is only switched on through config.
+ */
+final class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+
+    /**
+     * @return true if this JVM can report per-thread allocations.
+     */
+    static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * @return The current thread's allocated byte count, to be passed to {@link #stop(long)}.
+     */
+    long start() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    void stop(long startBytes) {
+        bytes.add(THREADS.getCurrentThreadAllocatedBytes() - startBytes);
+        samples.increment();
+    }
+
+    long samples() {
+        return samples.sum();
+    }
+
+    double bytesPerEvent() {
+        long count = samples.sum();
+        return count == 0 ? 0 : (double) bytes.sum() / count;
+    }
+
+    void reset() {
+        bytes.reset();
+        samples.reset();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                    && bean.isThreadAllocatedMemorySupported()) {
+                bean.setThreadAllocatedMemoryEnabled(true);
+                return bean;
+            }
+        } catch (Throwable ignored) {
+            // Not a HotSpot-style JVM, allocation tracking just stays unavailable
+        }
+        return null;
+    }
+}
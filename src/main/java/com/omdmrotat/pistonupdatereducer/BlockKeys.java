@@ -0,0 +1,84 @@
+package com.omdmrotat.pistonupdatereducer;
+
+/**
+ * Helpers for packing block and chunk coordinates into primitive longs, so hot-path code doesn't need
+ * Location or Block objects to remember positions.
+ */
+final class BlockKeys {
+
+    private BlockKeys() {
+    }
+
+    /**
+     * Packs block coordinates the same way Paper's Block#getBlockKey does:
+     * 27 bits of x, 27 bits of z and the (signed) y in the top 10 bits.
+     */
+    static long blockKey(int x, int y, int z) {
+        return ((long) x & 0x7FFFFFFL) | (((long) z & 0x7FFFFFFL) << 27) | ((long) y << 54);
+    }
+
+    static int blockX(long blockKey) {
+        return (int) ((blockKey << 37) >> 37); // Sign-extend the low 27 bits
+    }
+
+    static int blockY(long blockKey) {
+        return (int) (blockKey >> 54);
+    }
+
+    static int blockZ(long blockKey) {
+        return (int) ((blockKey << 10) >> 37);
+    }
+
+    /**
+     * @return The packed chunk key of the chunk containing the packed block position.
+     */
+    static long chunkKeyOfBlock(long blockKey) {
+        return chunkKey(blockX(blockKey) >> 4, blockZ(blockKey) >> 4);
+    }
+
+    /**
+     * @return The chunk section of the packed block position, packed like a block position
+     * (so sorting by it groups a section's blocks together).
+     */
+    static long sectionKey(long blockKey) {
+        return blockKey(blockX(blockKey) >> 4, blockY(blockKey) >> 4, blockZ(blockKey) >> 4);
+    }
+
+    /**
+     * Packs chunk coordinates the same way Paper's Chunk#getChunkKey does (x in the low 32 bits, z in the high 32 bits).
+     */
+    static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX & 0xFFFFFFFFL) | (((long) chunkZ & 0xFFFFFFFFL) << 32);
+    }
+
+    static int chunkX(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    static int chunkZ(long chunkKey) {
+        return (int) (chunkKey >>> 32);
+    }
+
+    /**
+     * Picks a lock stripe for a chunk. Folia regions are built from whole squares of chunks, so 32x32 chunk
+     * areas share a stripe: a region thread keeps hitting the same (uncontended) lock, while different regions
+     * mostly land on different stripes.
+     *
+     * @param stripes Number of stripes, a power of two.
+     */
+    static int stripe(int chunkX, int chunkZ, int stripes) {
+        return mix(chunkKey(chunkX >> 5, chunkZ >> 5)) & (stripes - 1);
+    }
+
+    /**
+     * Spreads the bits of a packed key for use as an open-addressing hash (murmur3 finalizer).
+     */
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,22 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+
+/**
+ * Applies the no-physics writes of a reduced piston move (see write-backend in config.yml).
+ * {@link BukkitBlockWriter} is the default and works everywhere; {@link SectionBlockWriter} writes straight into
+ * chunk sections on the server versions it knows.
+ */
+interface BlockWriter {
+
+    /**
+     * Writes the first {@code count} writes listed in {@code order} (indexes into the buffer's write arrays,
+     * sorted by chunk section) without physics. Called on the thread that owns the blocks.
+     */
+    void write(World world, MoveBuffer buffer, int[] order, int count);
+
+    /**
+     * @return Name for logs and /pur stats.
+     */
+    String name();
+}
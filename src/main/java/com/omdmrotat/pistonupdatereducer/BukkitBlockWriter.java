@@ -0,0 +1,30 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+
+/**
+ * Writes one block at a time through the Bukkit API (Block#setBlockData without physics).
+ * The safe default, and the fallback of {@link SectionBlockWriter}.
+ */
+final class BukkitBlockWriter implements BlockWriter {
+
+    static final BukkitBlockWriter INSTANCE = new BukkitBlockWriter();
+
+    private BukkitBlockWriter() {
+    }
+
+    @Override
+    public void write(World world, MoveBuffer buffer, int[] order, int count) {
+        for (int i = 0; i < count; i++) {
+            int write = order[i];
+            long position = buffer.writePositions[write];
+            world.getBlockAt(BlockKeys.blockX(position), BlockKeys.blockY(position), BlockKeys.blockZ(position))
+                    .setBlockData(buffer.writeData[write], false); // NO physics update
+        }
+    }
+
+    @Override
+    public String name() {
+        return "BUKKIT";
+    }
+}
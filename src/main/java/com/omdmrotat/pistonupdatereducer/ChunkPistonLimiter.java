@@ -0,0 +1,252 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-chunk (and optionally per-world) piston budget.
+ * Each chunk gets a token bucket stored in open-addressed primitive arrays keyed by the packed chunk key,
+ * so checking a piston event allocates nothing once the chunk has been seen.
+ * <p>
+ * Safe to call from several Folia region threads: chunk tables are split into lock stripes by area
+ * (see {@link BlockKeys#stripe}), and only the optional per-world bucket is shared between regions.
+ */
+final class ChunkPistonLimiter {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long EMPTY_KEY = Long.MIN_VALUE; // Not a valid packed chunk key for real worlds
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+    private static final int STRIPES = 32; // Must be a power of two
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final double worldTokensPerNano;
+    private final double worldBurst;
+    private final long idleNanos;
+
+    // Each stripe has one table per world, looked up by the world's (cached) UUID
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // Per-world buckets, only used when a per-world limit is configured
+    private final Map<UUID, WorldBudget> worldBudgets = new ConcurrentHashMap<>();
+
+    ChunkPistonLimiter(double eventsPerSecond, double burst, double worldEventsPerSecond, double worldBurst, long idleSeconds) {
+        this.tokensPerNano = eventsPerSecond / NANOS_PER_SECOND;
+        this.burst = Math.max(1.0, burst);
+        this.worldTokensPerNano = worldEventsPerSecond / NANOS_PER_SECOND;
+        this.worldBurst = Math.max(1.0, worldBurst);
+        this.idleNanos = Math.max(1L, idleSeconds) * NANOS_PER_SECOND;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes one token from the chunk (and world, if enabled) budget.
+     *
+     * @return true if the event is within budget, false if it should be throttled.
+     */
+    boolean tryAcquire(World world, int chunkX, int chunkZ) {
+        long now = System.nanoTime();
+        Stripe stripe = stripes[BlockKeys.stripe(chunkX, chunkZ, STRIPES)];
+        synchronized (stripe) {
+            WorldBuckets buckets = stripe.worlds.get(world.getUID());
+            if (buckets == null) {
+                buckets = new WorldBuckets(world.getName());
+                stripe.worlds.put(world.getUID(), buckets);
+            }
+            int slot = buckets.slotFor(BlockKeys.chunkKey(chunkX, chunkZ), now, burst, idleNanos);
+
+            // Refill the chunk bucket
+            double tokens = Math.min(burst, buckets.tokens[slot] + (now - buckets.lastRefill[slot]) * tokensPerNano);
+            buckets.lastRefill[slot] = now;
+
+            // The world bucket is only consulted (and only consumed) if the chunk has a token
+            if (tokens < 1.0 || (worldTokensPerNano > 0 && !worldBudget(world).tryAcquire(now))) {
+                buckets.tokens[slot] = tokens;
+                buckets.throttled[slot]++;
+                buckets.totalThrottled++;
+                return false;
+            }
+
+            buckets.tokens[slot] = tokens - 1.0;
+            return true;
+        }
+    }
+
+    private WorldBudget worldBudget(World world) {
+        WorldBudget budget = worldBudgets.get(world.getUID());
+        if (budget == null) {
+            budget = worldBudgets.computeIfAbsent(world.getUID(), id -> new WorldBudget());
+        }
+        return budget;
+    }
+
+    /**
+     * Collects the chunks with the most throttled events, highest first.
+     */
+    List<ThrottledChunk> topThrottled(int limit) {
+        List<ThrottledChunk> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (WorldBuckets buckets : stripe.worlds.values()) {
+                    for (int i = 0; i < buckets.keys.length; i++) {
+                        if (buckets.keys[i] != EMPTY_KEY && buckets.throttled[i] > 0) {
+                            result.add(new ThrottledChunk(buckets.worldName, BlockKeys.chunkX(buckets.keys[i]),
+                                    BlockKeys.chunkZ(buckets.keys[i]), buckets.throttled[i], buckets.tokens[i]));
+                        }
+                    }
+                }
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.throttled(), a.throttled()));
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    long totalThrottled() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (WorldBuckets buckets : stripe.worlds.values()) {
+                    total += buckets.totalThrottled;
+                }
+            }
+        }
+        return total;
+    }
+
+    int trackedChunks() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (WorldBuckets buckets : stripe.worlds.values()) {
+                    total += buckets.size;
+                }
+            }
+        }
+        return total;
+    }
+
+    record ThrottledChunk(String world, int chunkX, int chunkZ, long throttled, double tokens) {
+    }
+
+    private static final class Stripe {
+        private final Map<UUID, WorldBuckets> worlds = new HashMap<>();
+    }
+
+    /**
+     * Token bucket shared by all chunks of a world.
+     */
+    private final class WorldBudget {
+        private double tokens = worldBurst;
+        private long lastRefill = System.nanoTime();
+
+        synchronized boolean tryAcquire(long now) {
+            tokens = Math.min(worldBurst, tokens + (now - lastRefill) * worldTokensPerNano);
+            lastRefill = now;
+            if (tokens < 1.0) {
+                return false;
+            }
+            tokens -= 1.0;
+            return true;
+        }
+    }
+
+    /**
+     * Open-addressed (linear probing) table of token buckets for a single world (within one stripe).
+     */
+    private static final class WorldBuckets {
+        private final String worldName;
+        private long[] keys;
+        private double[] tokens;
+        private long[] lastRefill;
+        private long[] throttled;
+        private int size;
+        private long totalThrottled;
+
+        WorldBuckets(String worldName) {
+            this.worldName = worldName;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            tokens = new double[capacity];
+            lastRefill = new long[capacity];
+            throttled = new long[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+        }
+
+        /**
+         * Finds the slot for a chunk key, inserting a full bucket if the chunk is new.
+         */
+        int slotFor(long key, long now, double burst, long idleNanos) {
+            int mask = keys.length - 1;
+            int slot = BlockKeys.mix(key) & mask;
+            while (keys[slot] != EMPTY_KEY) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            // New chunk: make room first (keeps load factor <= 0.5), then insert
+            if ((size + 1) * 2 > keys.length) {
+                rehash(now, idleNanos);
+                return slotFor(key, now, burst, idleNanos);
+            }
+            keys[slot] = key;
+            tokens[slot] = burst;
+            lastRefill[slot] = now;
+            throttled[slot] = 0;
+            size++;
+            return slot;
+        }
+
+        /**
+         * Rebuilds the table, dropping chunks that have been idle long enough for their bucket to be full again.
+         * Only grows if the live entries still need the space.
+         */
+        private void rehash(long now, long idleNanos) {
+            long[] oldKeys = keys;
+            double[] oldTokens = tokens;
+            long[] oldLastRefill = lastRefill;
+            long[] oldThrottled = throttled;
+
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY && now - oldLastRefill[i] < idleNanos) {
+                    live++;
+                }
+            }
+            int capacity = oldKeys.length;
+            while ((live + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+
+            allocate(capacity);
+            size = 0;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY_KEY || now - oldLastRefill[i] >= idleNanos) {
+                    continue; // Empty or idle, forget it
+                }
+                int slot = BlockKeys.mix(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY_KEY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                tokens[slot] = oldTokens[i];
+                lastRefill[slot] = oldLastRefill[i];
+                throttled[slot] = oldThrottled[i];
+                size++;
+            }
+        }
+    }
+}
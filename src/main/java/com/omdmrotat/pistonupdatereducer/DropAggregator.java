@@ -0,0 +1,193 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Collects the drops of blocks broken by reduced piston moves (bamboo, sugar cane... overwritten by a pushed block or
+ * the piston head) and spawns them as a few merged stacks per chunk once the configured window has passed,
+ * instead of one item entity per broken block.
+ * <p>
+ * The merged stacks are dropped at the first broken block of the window, so hoppers under a farm still pick them up.
+ * Each chunk's flush runs on that chunk's region thread; state is split into lock stripes by area like the limiter.
+ */
+final class DropAggregator {
+
+    private static final int STRIPES = 32; // Must be a power of two
+
+    private final Plugin plugin;
+    private final long windowTicks;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder brokenBlocks = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder spawnedEntities = new LongAdder();
+
+    /**
+     * @param windowTicks How long drops are gathered per chunk before they are spawned.
+     */
+    DropAggregator(Plugin plugin, long windowTicks) {
+        this.plugin = plugin;
+        this.windowTicks = Math.max(1L, windowTicks);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes the drops of a block that is about to be overwritten by a piston move.
+     * Must be called before the block is replaced.
+     */
+    void collect(Block block) {
+        brokenBlocks.increment();
+        Collection<ItemStack> drops = block.getDrops(); // Drops without a tool, like a piston breaking it
+        if (drops.isEmpty()) {
+            return;
+        }
+        World world = block.getWorld();
+        int chunkX = block.getX() >> 4;
+        int chunkZ = block.getZ() >> 4;
+        long chunkKey = BlockKeys.chunkKey(chunkX, chunkZ);
+
+        boolean schedule;
+        Stripe stripe = stripes[BlockKeys.stripe(chunkX, chunkZ, STRIPES)];
+        synchronized (stripe) {
+            LongObjectMap<PendingDrops> chunks = stripe.worlds.computeIfAbsent(world.getUID(), id -> new LongObjectMap<>(16));
+            PendingDrops pending = chunks.get(chunkKey);
+            schedule = pending == null;
+            if (schedule) {
+                pending = new PendingDrops(world, block.getX() + 0.5, block.getY() + 0.5, block.getZ() + 0.5);
+                chunks.put(chunkKey, pending);
+            }
+            for (ItemStack drop : drops) {
+                pending.add(drop);
+            }
+        }
+        // First drop in this chunk for the window: spawn everything gathered once it is over
+        if (schedule) {
+            plugin.getServer().getRegionScheduler().runDelayed(plugin, world, chunkX, chunkZ,
+                    task -> flush(world.getUID(), chunkKey, stripe), windowTicks);
+        }
+    }
+
+    private void flush(UUID worldId, long chunkKey, Stripe stripe) {
+        PendingDrops pending;
+        synchronized (stripe) {
+            LongObjectMap<PendingDrops> chunks = stripe.worlds.get(worldId);
+            pending = chunks != null ? chunks.remove(chunkKey) : null;
+        }
+        if (pending != null) {
+            spawn(pending);
+        }
+    }
+
+    /**
+     * Spawns everything still gathered, used when the plugin is disabled.
+     * Scheduled flushes that run later find nothing left to do.
+     */
+    void flushAll() {
+        List<PendingDrops> all = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (LongObjectMap<PendingDrops> chunks : stripe.worlds.values()) {
+                    chunks.forEachValue(all::add);
+                }
+                stripe.worlds.clear();
+            }
+        }
+        for (PendingDrops pending : all) {
+            try {
+                spawn(pending);
+            } catch (Exception e) {
+                // Folia refuses world access from the shutdown thread, those drops are lost
+                plugin.getLogger().log(Level.WARNING, "Could not spawn aggregated piston drops at " + pending.location(), e);
+            }
+        }
+    }
+
+    private void spawn(PendingDrops pending) {
+        Location location = pending.location();
+        for (ItemStack stack : pending.stacks) {
+            // Split into legal stack sizes
+            int remaining = stack.getAmount();
+            int max = Math.max(1, stack.getMaxStackSize());
+            while (remaining > 0) {
+                ItemStack part = stack.clone();
+                part.setAmount(Math.min(max, remaining));
+                remaining -= part.getAmount();
+                pending.world.dropItem(location, part);
+                spawnedEntities.increment();
+            }
+        }
+    }
+
+    /**
+     * @return Blocks broken by reduced piston moves.
+     */
+    long brokenBlocks() {
+        return brokenBlocks.sum();
+    }
+
+    /**
+     * @return Items collected from broken blocks.
+     */
+    long items() {
+        return items.sum();
+    }
+
+    /**
+     * @return Item entities spawned for them.
+     */
+    long spawnedEntities() {
+        return spawnedEntities.sum();
+    }
+
+    private static final class Stripe {
+        private final Map<UUID, LongObjectMap<PendingDrops>> worlds = new HashMap<>();
+    }
+
+    /**
+     * Drops gathered for one chunk, merged by item type and meta.
+     */
+    private final class PendingDrops {
+        private final World world;
+        private final double x;
+        private final double y;
+        private final double z;
+        private final List<ItemStack> stacks = new ArrayList<>(4);
+
+        PendingDrops(World world, double x, double y, double z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        void add(ItemStack drop) {
+            items.add(drop.getAmount());
+            for (ItemStack stack : stacks) {
+                if (stack.isSimilar(drop)) {
+                    stack.setAmount(stack.getAmount() + drop.getAmount()); // May exceed the max stack size, split on spawn
+                    return;
+                }
+            }
+            stacks.add(drop.clone());
+        }
+
+        Location location() {
+            return new Location(world, x, y, z);
+        }
+    }
+}
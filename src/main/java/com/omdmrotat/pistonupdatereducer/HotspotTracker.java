@@ -0,0 +1,90 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate top-N of the most active piston positions, using the Space-Saving algorithm:
+ * a fixed number of counters, where an untracked position takes over the smallest counter.
+ * Memory stays constant no matter how many pistons fire, and frequent positions are never evicted.
+ * <p>
+ * Counters are split into lock stripes by area (see {@link BlockKeys#stripe}) so Folia region threads don't contend;
+ * a position always lands in the same stripe, and {@link #top} merges the stripes.
+ */
+final class HotspotTracker {
+
+    private static final int STRIPES = 16; // Must be a power of two
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param capacity Counters per stripe.
+     */
+    HotspotTracker(int capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    void record(long blockKey) {
+        Stripe stripe = stripes[BlockKeys.stripe(BlockKeys.blockX(blockKey) >> 4, BlockKeys.blockZ(blockKey) >> 4, STRIPES)];
+        synchronized (stripe) {
+            stripe.record(blockKey);
+        }
+    }
+
+    /**
+     * @return Up to {@code limit} {position, count} pairs, highest count first.
+     */
+    List<long[]> top(int limit) {
+        List<long[]> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.used; i++) {
+                    result.add(new long[]{stripe.positions[i], stripe.counts[i]});
+                }
+            }
+        }
+        result.sort((a, b) -> Long.compare(b[1], a[1]));
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    private static final class Stripe {
+        private final long[] positions;
+        private final long[] counts;
+        private final LongObjectMap<int[]> slots; // Position -> {slot}, the array is reused while the position is tracked
+        private int used;
+
+        Stripe(int capacity) {
+            positions = new long[capacity];
+            counts = new long[capacity];
+            slots = new LongObjectMap<>(capacity);
+        }
+
+        void record(long blockKey) {
+            int[] slot = slots.get(blockKey);
+            if (slot != null) {
+                counts[slot[0]]++;
+                return;
+            }
+            if (used < positions.length) {
+                positions[used] = blockKey;
+                counts[used] = 1;
+                slots.put(blockKey, new int[]{used});
+                used++;
+                return;
+            }
+            // Replace the smallest counter, inheriting its count (Space-Saving overestimates, never underestimates)
+            int min = 0;
+            for (int i = 1; i < used; i++) {
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            int[] reused = slots.remove(positions[min]);
+            positions[min] = blockKey;
+            counts[min]++;
+            slots.put(blockKey, reused);
+        }
+    }
+}
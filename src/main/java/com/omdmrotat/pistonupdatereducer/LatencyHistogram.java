@@ -0,0 +1,64 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free nanosecond latency histogram with power-of-two buckets.
+ * Bucket i counts samples in [2^i, 2^(i+1)) ns, which is plenty of resolution for spotting regressions
+ * and costs one LongAdder increment per sample.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 40; // Up to ~2^40 ns (18 minutes), anything longer lands in the last bucket
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        int bucket = nanos <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double meanNanos() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : (double) totalNanos.sum() / samples;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The upper bound (in ns) of the bucket containing the percentile, or 0 if there are no samples.
+     */
+    long percentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            samples += snapshot[i];
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKETS;
+    }
+}
@@ -0,0 +1,106 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Picks how hard the plugin steps in from the server's own tick duration (MSPT).
+ * Tick durations are averaged over roughly 'window-ticks' ticks; each tier is entered once the average reaches its
+ * enter threshold and left once it drops below its (lower) exit threshold, and no tier change happens within
+ * 'min-tier-seconds' of the last one, so the tier doesn't flap around a threshold.
+ * <p>
+ * Fed from the end of every server tick (Paper only, Folia has no global tick); read by piston events on any thread.
+ */
+final class LoadTiers {
+
+    enum Tier {
+        /**
+         * Healthy server: moves the rules would reduce are left to vanilla. VANILLA and CANCEL rules still apply.
+         */
+        CALM,
+        /**
+         * Moderate load: rules and target blocks apply (reduced moves), without throttling or clock division.
+         */
+        REDUCE,
+        /**
+         * Heavy load: the chunk limiter and clock detection (where enabled) also apply, shedding the hottest chunks' pistons.
+         */
+        SHED
+    }
+
+    private static final Tier[] TIERS = Tier.values();
+
+    // Indexed by tier ordinal, CALM's entries are unused
+    private final double[] enterMspt;
+    private final double[] exitMspt;
+    private final double alpha;
+    private final long minTierNanos;
+    private final Logger logger;
+
+    // Only touched from the tick end handler
+    private double averageMspt;
+    private boolean primed;
+    private long lastChangeNanos;
+
+    private volatile Tier tier = Tier.CALM;
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param windowTicks Ticks the moving average roughly spans.
+     */
+    LoadTiers(double reduceEnter, double reduceExit, double shedEnter, double shedExit, int windowTicks, long minTierSeconds, Logger logger) {
+        this.enterMspt = new double[]{0, reduceEnter, shedEnter};
+        this.exitMspt = new double[]{0, reduceExit, shedExit};
+        this.alpha = 2.0 / (Math.max(1, windowTicks) + 1);
+        this.minTierNanos = Math.max(0, minTierSeconds) * 1_000_000_000L;
+        this.logger = logger;
+    }
+
+    /**
+     * Feeds one tick's duration and moves to another tier if the average calls for it.
+     * Steps up straight to the highest tier reached, steps down one tier at a time.
+     */
+    void recordTick(double tickMillis) {
+        if (!primed) {
+            averageMspt = tickMillis;
+            primed = true;
+        } else {
+            averageMspt += alpha * (tickMillis - averageMspt);
+        }
+
+        long now = System.nanoTime();
+        if (lastChangeNanos != 0 && now - lastChangeNanos < minTierNanos) {
+            return;
+        }
+        Tier current = tier;
+        Tier next = current;
+        for (int i = TIERS.length - 1; i > current.ordinal(); i--) {
+            if (averageMspt >= enterMspt[i]) {
+                next = TIERS[i];
+                break;
+            }
+        }
+        if (next == current && current != Tier.CALM && averageMspt < exitMspt[current.ordinal()]) {
+            next = TIERS[current.ordinal() - 1];
+        }
+        if (next != current) {
+            tier = next;
+            lastChangeNanos = now;
+            changes.incrementAndGet();
+            logger.info(String.format("Average MSPT %.1f, piston handling tier %s -> %s.", averageMspt, current, next));
+        }
+    }
+
+    Tier tier() {
+        return tier;
+    }
+
+    // Written by the tick thread, a slightly stale value is fine for display
+    double averageMspt() {
+        return averageMspt;
+    }
+
+    long changes() {
+        return changes.get();
+    }
+}
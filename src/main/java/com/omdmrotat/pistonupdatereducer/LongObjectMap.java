@@ -0,0 +1,175 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Minimal open-addressed (linear probing) map from primitive long keys to objects.
+ * Lookups and updates of existing keys never allocate; the arrays only grow when the map fills up.
+ *
+ * @param <V> The value type.
+ */
+final class LongObjectMap<V> {
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE; // Reserved, never used as a real key
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    LongObjectMap() {
+        this(16);
+    }
+
+    LongObjectMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = keys.length - 1;
+        int slot = BlockKeys.mix(key) & mask;
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return The previous value for the key, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        int mask = keys.length - 1;
+        int slot = BlockKeys.mix(key) & mask;
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return The removed value, or null if the key was not present.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = keys.length - 1;
+        int slot = BlockKeys.mix(key) & mask;
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                deleteSlot(slot);
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, EMPTY_KEY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Visits every value. The map must not be modified during iteration.
+     */
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * Visits every key/value pair. The map must not be modified during iteration.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Entry<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface Entry<V> {
+        void accept(long key, V value);
+    }
+
+    /**
+     * Removes a slot and shifts later entries of the same probe chain back, so lookups never need tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY_KEY) {
+            int home = BlockKeys.mix(keys[next]) & mask;
+            // Move the entry into the hole if its home slot is not between the hole and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY_KEY;
+        values[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY) {
+                continue;
+            }
+            int slot = BlockKeys.mix(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable per-thread storage for one piston move: the packed source position and BlockData of every moved block,
+ * and the planned writes (destination and what to do at source/destination, see the flag constants).
+ * Each region thread (Folia) or the main thread keeps its own buffer, so the steady-state move path
+ * doesn't allocate lists or Location objects. A cached {@link MovePlan} is a frozen copy of a planned buffer.
+ */
+final class MoveBuffer {
+
+    private static final ThreadLocal<MoveBuffer> BUFFERS = ThreadLocal.withInitial(MoveBuffer::new);
+
+    // Planned writes per moved block
+    static final int CLEAR = 1; // Clear the source without physics
+    static final int CLEAR_DEFERRED = 1 << 1; // Clear the source last, with physics
+    static final int PLACE = 1 << 2; // Place at the destination without physics
+    static final int PLACE_DEFERRED = 1 << 3; // Place at the destination last, with physics
+    static final int PLACE_AT_HEAD = 1 << 4; // Destination is the head spot, nothing is placed
+    static final int PLACE_UNLOADED = 1 << 5; // Destination chunk is not loaded, nothing is placed
+    static final int MAY_BREAK = 1 << 6; // Destination is not vacated by the move, whatever is there gets broken
+
+    long[] positions = new long[16]; // Vanilla pushes at most 12 blocks, so this rarely grows
+    BlockData[] data = new BlockData[16];
+    long[] destinations = new long[16];
+    int[] flags = new int[16];
+    int size;
+    boolean headPhysics; // Head spot is written with physics (selective neighbor updates)
+    private boolean inUse;
+
+    // Writes held back until the end of the move so they can be applied with physics (selective neighbor updates)
+    long[] deferredPositions = new long[8];
+    BlockData[] deferredData = new BlockData[8];
+    int deferredSize;
+
+    // The move as one write per changed position (the block moving in, or air), in chunk section order
+    long[] writePositions = new long[32];
+    BlockData[] writeData = new BlockData[32];
+    int[] writeOrder = new int[32]; // Indexes into the write arrays, sorted by chunk section
+    int[] edgeOrder = new int[32]; // Structure moves: the edge writes applied with physics (see StructureMover)
+    int writeSize;
+
+    // Structure moves: positions outside the move that need one neighbor update, each listed once
+    long[] updateTargets = new long[64];
+    int updateSize;
+
+    // Last chunk that was checked for being loaded, so a move within one chunk checks only once
+    private World checkedWorld;
+    private long checkedChunk;
+
+    /**
+     * @return This thread's buffer, or a fresh one if it is already in use further up the stack.
+     */
+    static MoveBuffer acquire() {
+        MoveBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            buffer = new MoveBuffer(); // Re-entrant piston handling, should not happen in practice
+        }
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    /**
+     * @return true while this thread is in the middle of a reduced piston move (its own writes fire physics events).
+     */
+    static boolean inMove() {
+        return BUFFERS.get().inUse;
+    }
+
+    /**
+     * Clears references to BlockData and worlds, and hands the buffer back to its thread.
+     */
+    void release() {
+        Arrays.fill(data, 0, size, null);
+        size = 0;
+        headPhysics = false;
+        Arrays.fill(deferredData, 0, deferredSize, null);
+        deferredSize = 0;
+        Arrays.fill(writeData, 0, writeSize, null);
+        writeSize = 0;
+        updateSize = 0;
+        checkedWorld = null;
+        inUse = false;
+    }
+
+    /**
+     * Records the position and current BlockData of every moved block.
+     *
+     * @return The index of the first block in an unloaded chunk, or -1 if all of them are loaded.
+     */
+    int capture(World world, List<Block> movedBlocks) {
+        int count = movedBlocks.size();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            Block block = movedBlocks.get(i);
+            int x = block.getX();
+            int z = block.getZ();
+            if (!isChunkLoaded(world, x >> 4, z >> 4)) {
+                size = i;
+                return i;
+            }
+            positions[i] = BlockKeys.blockKey(x, block.getY(), z);
+            data[i] = block.getBlockData(); // Already a copy, no need to clone it again
+            size = i + 1;
+        }
+        return -1;
+    }
+
+    void ensureCapacity(int count) {
+        if (count > positions.length) {
+            positions = Arrays.copyOf(positions, count);
+            data = Arrays.copyOf(data, count);
+            destinations = Arrays.copyOf(destinations, count);
+            flags = Arrays.copyOf(flags, count);
+        }
+    }
+
+    /**
+     * Holds back a write until the rest of the move is done.
+     */
+    void defer(long position, BlockData blockData) {
+        if (deferredSize == deferredPositions.length) {
+            deferredPositions = Arrays.copyOf(deferredPositions, deferredSize * 2);
+            deferredData = Arrays.copyOf(deferredData, deferredSize * 2);
+        }
+        deferredPositions[deferredSize] = position;
+        deferredData[deferredSize] = blockData;
+        deferredSize++;
+    }
+
+    /**
+     * Adds a write of the move's final state.
+     */
+    void addWrite(long position, BlockData blockData) {
+        if (writeSize == writePositions.length) {
+            writePositions = Arrays.copyOf(writePositions, writeSize * 2);
+            writeData = Arrays.copyOf(writeData, writeSize * 2);
+            writeOrder = Arrays.copyOf(writeOrder, writeSize * 2);
+            edgeOrder = Arrays.copyOf(edgeOrder, writeSize * 2);
+        }
+        writePositions[writeSize] = position;
+        writeData[writeSize] = blockData;
+        writeSize++;
+    }
+
+    /**
+     * Fills writeOrder with the writes sorted by chunk section (insertion sort, a move is a few dozen writes at most).
+     */
+    void sortWritesBySection() {
+        for (int i = 0; i < writeSize; i++) {
+            long section = BlockKeys.sectionKey(writePositions[i]);
+            int j = i;
+            while (j > 0 && BlockKeys.sectionKey(writePositions[writeOrder[j - 1]]) > section) {
+                writeOrder[j] = writeOrder[j - 1];
+                j--;
+            }
+            writeOrder[j] = i;
+        }
+    }
+
+    /**
+     * Adds a position that needs a neighbor update, unless it is already listed.
+     */
+    void addUpdateTarget(long position) {
+        for (int i = 0; i < updateSize; i++) {
+            if (updateTargets[i] == position) {
+                return;
+            }
+        }
+        if (updateSize == updateTargets.length) {
+            updateTargets = Arrays.copyOf(updateTargets, updateSize * 2);
+        }
+        updateTargets[updateSize++] = position;
+    }
+
+    /**
+     * @return The index of the captured block that comes from this position, or -1.
+     */
+    int sourceIndex(long position) {
+        for (int i = 0; i < size; i++) {
+            if (positions[i] == position) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if one of the writes is at this position.
+     */
+    boolean isWritten(long position) {
+        for (int i = 0; i < writeSize; i++) {
+            if (writePositions[i] == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if one of the captured blocks comes from this position.
+     */
+    boolean isSource(long position) {
+        return sourceIndex(position) >= 0;
+    }
+
+    /**
+     * Loaded check that remembers the last chunk it saw loaded.
+     */
+    boolean isChunkLoaded(World world, int chunkX, int chunkZ) {
+        long key = BlockKeys.chunkKey(chunkX, chunkZ);
+        if (world == checkedWorld && key == checkedChunk) {
+            return true;
+        }
+        if (!world.isChunkLoaded(chunkX, chunkZ)) {
+            return false;
+        }
+        checkedWorld = world;
+        checkedChunk = key;
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A planned piston move frozen for reuse (see {@link MovePlanCache}): the moved blocks' positions and data,
+ * their destinations and write flags, and the head update.
+ * Immutable once built; loading it into a {@link MoveBuffer} skips capturing and planning the move again.
+ */
+final class MovePlan {
+
+    private final BlockFace direction;
+    private final boolean extending;
+    private final long[] positions;
+    private final BlockData[] data;
+    private final long[] destinations;
+    private final int[] flags;
+    private final boolean headPhysics;
+    // Every position whose change makes the plan stale, sorted and without duplicates
+    private final long[] footprint;
+
+    private MovePlan(BlockFace direction, boolean extending, MoveBuffer buffer, long[] footprint) {
+        this.direction = direction;
+        this.extending = extending;
+        this.positions = Arrays.copyOf(buffer.positions, buffer.size);
+        this.data = Arrays.copyOf(buffer.data, buffer.size);
+        this.destinations = Arrays.copyOf(buffer.destinations, buffer.size);
+        this.flags = Arrays.copyOf(buffer.flags, buffer.size);
+        this.headPhysics = buffer.headPhysics;
+        this.footprint = footprint;
+    }
+
+    /**
+     * Freezes a planned buffer.
+     *
+     * @param pistonKey         Packed piston position, never part of its own footprint.
+     * @param headKey           Packed head position.
+     * @param includeNeighbors  Also count the neighbors of every changed position as footprint
+     *                          (their blocks decided the selective update flags).
+     */
+    static MovePlan of(MoveBuffer buffer, BlockFace direction, boolean extending, long pistonKey, long headKey, boolean includeNeighbors) {
+        int changed = buffer.size * 2 + 1;
+        long[] footprint = new long[includeNeighbors ? changed * 7 : changed];
+        int count = 0;
+        for (int i = 0; i < buffer.size; i++) {
+            count = addFootprint(footprint, count, buffer.positions[i], includeNeighbors);
+            count = addFootprint(footprint, count, buffer.destinations[i], includeNeighbors);
+        }
+        count = addFootprint(footprint, count, headKey, includeNeighbors);
+
+        Arrays.sort(footprint, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            // The piston's own power changes (the clock driving it) must not drop its plans
+            if (footprint[i] == pistonKey) {
+                continue;
+            }
+            if (unique == 0 || footprint[unique - 1] != footprint[i]) {
+                footprint[unique++] = footprint[i];
+            }
+        }
+        return new MovePlan(direction, extending, buffer, Arrays.copyOf(footprint, unique));
+    }
+
+    private static int addFootprint(long[] footprint, int count, long position, boolean includeNeighbors) {
+        footprint[count++] = position;
+        if (includeNeighbors) {
+            int x = BlockKeys.blockX(position);
+            int y = BlockKeys.blockY(position);
+            int z = BlockKeys.blockZ(position);
+            footprint[count++] = BlockKeys.blockKey(x + 1, y, z);
+            footprint[count++] = BlockKeys.blockKey(x - 1, y, z);
+            footprint[count++] = BlockKeys.blockKey(x, y + 1, z);
+            footprint[count++] = BlockKeys.blockKey(x, y - 1, z);
+            footprint[count++] = BlockKeys.blockKey(x, y, z + 1);
+            footprint[count++] = BlockKeys.blockKey(x, y, z - 1);
+        }
+        return count;
+    }
+
+    /**
+     * Check that the event moves the same blocks the plan was made for: same count, positions and full block states.
+     * Changes that fire block events invalidate the plan before this; the state check catches blocks changed without
+     * one (other plugins, WorldEdit, debug sticks, server internals) and state changes that keep the type
+     * (observer power, repeater delay, note pitch, crop age...), so a stale plan can't write back states that are gone.
+     * The type is compared first, it doesn't allocate and rules out most mismatches.
+     */
+    boolean matches(BlockFace eventDirection, boolean eventExtending, List<Block> movedBlocks) {
+        if (eventDirection != direction || eventExtending != extending || movedBlocks.size() != positions.length) {
+            return false;
+        }
+        for (int i = 0; i < positions.length; i++) {
+            Block block = movedBlocks.get(i);
+            if (BlockKeys.blockKey(block.getX(), block.getY(), block.getZ()) != positions[i]
+                    || block.getType() != data[i].getMaterial()
+                    || !block.getBlockData().equals(data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the plan into the buffer, as if the move had just been captured and planned.
+     */
+    void load(MoveBuffer buffer) {
+        buffer.ensureCapacity(positions.length);
+        System.arraycopy(positions, 0, buffer.positions, 0, positions.length);
+        System.arraycopy(data, 0, buffer.data, 0, data.length);
+        System.arraycopy(destinations, 0, buffer.destinations, 0, destinations.length);
+        System.arraycopy(flags, 0, buffer.flags, 0, flags.length);
+        buffer.size = positions.length;
+        buffer.headPhysics = headPhysics;
+    }
+
+    boolean extending() {
+        return extending;
+    }
+
+    long[] footprint() {
+        return footprint;
+    }
+}
@@ -0,0 +1,301 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of {@link MovePlan}s per piston position (one extend and one retract plan each),
+ * so a clock-driven piston firing against the same blocks skips capturing and planning its move.
+ * <p>
+ * A plan is dropped as soon as anything changes inside its footprint: block events reported by
+ * {@link MovePlanListener} and reduced moves of other pistons (which don't fire block events).
+ * The number of pistons with plans is capped; when full, a CLOCK (second chance) sweep evicts pistons whose
+ * plans weren't used since the last sweep. State is split into lock stripes by area like the chunk limiter,
+ * a piston's plans and footprint index entries live in the piston's stripe.
+ */
+final class MovePlanCache {
+
+    private static final int STRIPES = 32; // Must be a power of two
+    // Furthest a footprint position can be from its piston: 12 pushed blocks, the block they move into, its neighbor
+    private static final int REACH = 14;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger cachedPistons = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxPistons Upper bound on pistons with cached plans (approximate, it is split over the lock stripes).
+     */
+    MovePlanCache(int maxPistons) {
+        int perStripe = Math.max(4, maxPistons / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * @return The cached plan for this move, or null if there is none or it was made for different blocks.
+     */
+    MovePlan get(World world, long pistonKey, BlockFace direction, boolean extending, List<Block> movedBlocks) {
+        MovePlan plan = null;
+        Stripe stripe = stripeOf(pistonKey);
+        synchronized (stripe) {
+            WorldPlans plans = stripe.worlds.get(world.getUID());
+            Entry entry = plans != null ? plans.entries.get(pistonKey) : null;
+            if (entry != null) {
+                plan = extending ? entry.extend : entry.retract;
+                entry.referenced = true;
+            }
+        }
+        // Plans are immutable, the position check doesn't need the lock
+        if (plan != null && plan.matches(direction, extending, movedBlocks)) {
+            hits.increment();
+            return plan;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a plan, replacing the piston's previous plan for the same direction.
+     */
+    void put(World world, long pistonKey, MovePlan plan) {
+        Stripe stripe = stripeOf(pistonKey);
+        synchronized (stripe) {
+            WorldPlans plans = stripe.worlds.computeIfAbsent(world.getUID(), id -> new WorldPlans());
+            Entry entry = plans.entries.get(pistonKey);
+            if (entry == null) {
+                entry = new Entry(plans, pistonKey);
+                stripe.insert(entry);
+                plans.entries.put(pistonKey, entry);
+                cachedPistons.incrementAndGet();
+            }
+            MovePlan previous = plan.extending() ? entry.extend : entry.retract;
+            if (previous != null) {
+                plans.unindex(previous, pistonKey);
+            }
+            if (plan.extending()) {
+                entry.extend = plan;
+            } else {
+                entry.retract = plan;
+            }
+            plans.index(plan, pistonKey);
+            entry.referenced = true;
+        }
+    }
+
+    /**
+     * Drops every plan whose footprint contains the position.
+     */
+    void invalidate(World world, int x, int y, int z) {
+        invalidate(world, x, y, z, Long.MIN_VALUE);
+    }
+
+    /**
+     * Drops every plan whose footprint contains the position, except the given piston's own plans
+     * (its own moves are expected to change its footprint).
+     */
+    void invalidate(World world, int x, int y, int z, long ownerKey) {
+        if (cachedPistons.get() == 0) {
+            return; // Nothing cached, the common case for most block events
+        }
+        long position = BlockKeys.blockKey(x, y, z);
+        UUID worldId = world.getUID();
+        // Pistons within reach may live in neighboring stripes, visit each distinct stripe once
+        int first = BlockKeys.stripe((x - REACH) >> 4, (z - REACH) >> 4, STRIPES);
+        int second = BlockKeys.stripe((x + REACH) >> 4, (z - REACH) >> 4, STRIPES);
+        int third = BlockKeys.stripe((x - REACH) >> 4, (z + REACH) >> 4, STRIPES);
+        int fourth = BlockKeys.stripe((x + REACH) >> 4, (z + REACH) >> 4, STRIPES);
+        invalidate(stripes[first], worldId, position, ownerKey);
+        if (second != first) {
+            invalidate(stripes[second], worldId, position, ownerKey);
+        }
+        if (third != first && third != second) {
+            invalidate(stripes[third], worldId, position, ownerKey);
+        }
+        if (fourth != first && fourth != second && fourth != third) {
+            invalidate(stripes[fourth], worldId, position, ownerKey);
+        }
+    }
+
+    private void invalidate(Stripe stripe, UUID worldId, long position, long ownerKey) {
+        synchronized (stripe) {
+            WorldPlans plans = stripe.worlds.get(worldId);
+            if (plans == null) {
+                return;
+            }
+            long[] owners = plans.index.get(position);
+            if (owners == null) {
+                return;
+            }
+            // Copy, removing entries rewrites the index array
+            long[] affected = owners.clone();
+            for (long pistonKey : affected) {
+                if (pistonKey == ownerKey) {
+                    continue;
+                }
+                Entry entry = plans.entries.get(pistonKey);
+                if (entry != null) {
+                    remove(entry);
+                    invalidations.increment();
+                }
+            }
+        }
+    }
+
+    // Caller holds the stripe lock
+    private void remove(Entry entry) {
+        WorldPlans plans = entry.plans;
+        if (entry.extend != null) {
+            plans.unindex(entry.extend, entry.pistonKey);
+        }
+        if (entry.retract != null) {
+            plans.unindex(entry.retract, entry.pistonKey);
+        }
+        plans.entries.remove(entry.pistonKey);
+        entry.removed = true;
+        cachedPistons.decrementAndGet();
+    }
+
+    private Stripe stripeOf(long pistonKey) {
+        return stripes[BlockKeys.stripe(BlockKeys.blockX(pistonKey) >> 4, BlockKeys.blockZ(pistonKey) >> 4, STRIPES)];
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long invalidations() {
+        return invalidations.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    int cachedPistons() {
+        return cachedPistons.get();
+    }
+
+    /**
+     * One stripe: the plans of its pistons per world, and the CLOCK ring bounding their number.
+     */
+    private final class Stripe {
+        private final Map<UUID, WorldPlans> worlds = new HashMap<>();
+        private final Entry[] ring;
+        private int ringSize;
+        private int hand;
+
+        Stripe(int capacity) {
+            ring = new Entry[capacity];
+        }
+
+        /**
+         * Puts a new entry in the ring, evicting a piston that wasn't used since the hand last passed it if full.
+         */
+        void insert(Entry entry) {
+            if (ringSize < ring.length) {
+                ring[ringSize++] = entry;
+                return;
+            }
+            while (true) {
+                Entry candidate = ring[hand];
+                if (candidate.removed) {
+                    break; // Slot of an invalidated piston, free to reuse
+                }
+                if (!candidate.referenced) {
+                    remove(candidate);
+                    evictions.increment();
+                    break;
+                }
+                candidate.referenced = false; // Second chance
+                hand = (hand + 1) % ring.length;
+            }
+            ring[hand] = entry;
+            hand = (hand + 1) % ring.length;
+        }
+    }
+
+    /**
+     * Plans of one world in one stripe, and which pistons' plans cover each footprint position.
+     */
+    private static final class WorldPlans {
+        private final LongObjectMap<Entry> entries = new LongObjectMap<>(64);
+        private final LongObjectMap<long[]> index = new LongObjectMap<>(256);
+
+        void index(MovePlan plan, long pistonKey) {
+            for (long position : plan.footprint()) {
+                long[] owners = index.get(position);
+                if (owners == null) {
+                    index.put(position, new long[]{pistonKey});
+                } else {
+                    long[] grown = Arrays.copyOf(owners, owners.length + 1);
+                    grown[owners.length] = pistonKey;
+                    index.put(position, grown);
+                }
+            }
+        }
+
+        void unindex(MovePlan plan, long pistonKey) {
+            for (long position : plan.footprint()) {
+                long[] owners = index.get(position);
+                if (owners == null) {
+                    continue;
+                }
+                // Remove one occurrence (the extend and retract plans of a piston may both cover the position)
+                int found = -1;
+                for (int i = 0; i < owners.length; i++) {
+                    if (owners[i] == pistonKey) {
+                        found = i;
+                        break;
+                    }
+                }
+                if (found < 0) {
+                    continue;
+                }
+                if (owners.length == 1) {
+                    index.remove(position);
+                } else {
+                    long[] shrunk = new long[owners.length - 1];
+                    System.arraycopy(owners, 0, shrunk, 0, found);
+                    System.arraycopy(owners, found + 1, shrunk, found, owners.length - found - 1);
+                    index.put(position, shrunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cached plans of one piston.
+     */
+    private static final class Entry {
+        private final WorldPlans plans;
+        private final long pistonKey;
+        private MovePlan extend;
+        private MovePlan retract;
+        private boolean referenced;
+        private boolean removed;
+
+        Entry(WorldPlans plans, long pistonKey) {
+            this.plans = plans;
+            this.pistonKey = pistonKey;
+        }
+    }
+}
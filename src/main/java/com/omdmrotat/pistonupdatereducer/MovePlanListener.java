@@ -0,0 +1,142 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+
+import java.util.List;
+
+/**
+ * Drops cached move plans (see {@link MovePlanCache}) when a block inside their footprint changes.
+ * Every handler runs at MONITOR and skips cancelled events, so only changes that actually happen count.
+ * Each handler returns right away while the plan cache is disabled or empty.
+ */
+final class MovePlanListener implements Listener {
+
+    private final PistonHandler pistonHandler;
+
+    MovePlanListener(PistonHandler pistonHandler) {
+        this.pistonHandler = pistonHandler;
+    }
+
+    private void invalidate(Block block) {
+        MovePlanCache plans = pistonHandler.getSettings().movePlans();
+        if (plans != null) {
+            plans.invalidate(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        }
+    }
+
+    private void invalidateAll(List<Block> blocks) {
+        MovePlanCache plans = pistonHandler.getSettings().movePlans();
+        if (plans == null || plans.cachedPistons() == 0) {
+            return;
+        }
+        for (Block block : blocks) {
+            plans.invalidate(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    // Neighbor updates: the source block is the one that changed (redstone power, observer pulses...), and the
+    // notified block may change state in reaction (a lamp, a growing crop's support...), so both are invalidated.
+    // Updates caused by our own reduced moves are skipped, the move already invalidated what it changed.
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        MovePlanCache plans = pistonHandler.getSettings().movePlans();
+        if (plans == null || plans.cachedPistons() == 0 || MoveBuffer.inMove()) {
+            return;
+        }
+        Block block = event.getBlock();
+        plans.invalidate(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        Block source = event.getSourceBlock();
+        if (source.getX() != block.getX() || source.getY() != block.getY() || source.getZ() != block.getZ()) {
+            plans.invalidate(source.getWorld(), source.getX(), source.getY(), source.getZ());
+        }
+    }
+
+    // Also covers BlockFormEvent and BlockSpreadEvent
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        invalidate(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        invalidateAll(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        invalidateAll(event.blockList());
+    }
+
+    // Reduced moves are cancelled and invalidate their own changes, these are the moves left to vanilla
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        invalidateVanillaMove(event, event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        invalidateVanillaMove(event, event.getBlocks());
+    }
+
+    private void invalidateVanillaMove(BlockPistonEvent event, List<Block> movedBlocks) {
+        MovePlanCache plans = pistonHandler.getSettings().movePlans();
+        if (plans == null || plans.cachedPistons() == 0) {
+            return;
+        }
+        BlockFace direction = event.getDirection();
+        Block piston = event.getBlock();
+        // The head spot, every moved block's source and destination
+        plans.invalidate(piston.getWorld(), piston.getX() + direction.getModX(), piston.getY() + direction.getModY(), piston.getZ() + direction.getModZ());
+        for (Block block : movedBlocks) {
+            plans.invalidate(block.getWorld(), block.getX(), block.getY(), block.getZ());
+            plans.invalidate(block.getWorld(), block.getX() + direction.getModX(), block.getY() + direction.getModY(), block.getZ() + direction.getModZ());
+        }
+    }
+}
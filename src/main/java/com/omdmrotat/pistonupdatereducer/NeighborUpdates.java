@@ -0,0 +1,54 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.Directional;
+
+/**
+ * Decides which positions of a reduced piston move still need their neighbor update (selective mode).
+ * A changed position needs one if a neighbor reacts to it: an observer watching it, a comparator reading it as
+ * its back input, or another piston facing it (double-piston farms rely on those seeing the change).
+ * Neighbors pointing elsewhere don't react to the change and don't force a physics write.
+ * Every other position is written without physics, as in the default mode.
+ */
+final class NeighborUpdates {
+
+    private static final BlockFace[] FACES = {
+            BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN
+    };
+
+    private NeighborUpdates() {
+    }
+
+    /**
+     * @param buffer    The move's buffer, used for its cached chunk loaded check (may be null).
+     * @param pistonKey Packed position of the moving piston, which never counts as a reacting neighbor.
+     * @return true if a change at (x, y, z) has to be applied with physics.
+     */
+    static boolean needsUpdate(MoveBuffer buffer, World world, int x, int y, int z, long pistonKey) {
+        for (BlockFace face : FACES) {
+            int nx = x + face.getModX();
+            int ny = y + face.getModY();
+            int nz = z + face.getModZ();
+            if (BlockKeys.blockKey(nx, ny, nz) == pistonKey
+                    || !(buffer != null ? buffer.isChunkLoaded(world, nx >> 4, nz >> 4) : world.isChunkLoaded(nx >> 4, nz >> 4))) {
+                continue; // Never load chunks just to look at a neighbor
+            }
+            Material type = world.getBlockAt(nx, ny, nz).getType();
+            switch (type) {
+                case OBSERVER, PISTON, STICKY_PISTON, COMPARATOR:
+                    // An observer watches the block its face points at, a piston the block it pushes,
+                    // and a comparator's facing points at its back input
+                    if (world.getBlockAt(nx, ny, nz).getBlockData() instanceof Directional directional
+                            && directional.getFacing() == face.getOppositeFace()) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,26 @@
+package com.omdmrotat.pistonupdatereducer;
+
+/**
+ * What the plugin does with a piston event, as decided by {@link PistonRules}.
+ * Also used for the outcome of an event (what was actually done once the load tier, clock detection and the chunk
+ * budget had their say, see metrics and traces): VANILLA left to vanilla, REDUCE moved by the plugin,
+ * THROTTLE held back by the chunk budget or clock division (cancelled or deferred), CANCEL cancelled by a rule.
+ */
+enum PistonAction {
+    /**
+     * Left completely alone: no reduced move, no chunk budget.
+     */
+    VANILLA,
+    /**
+     * Vanilla move, but the event counts against the chunk limiter (what non-target pistons get by default).
+     */
+    THROTTLE,
+    /**
+     * Reduced-update custom move (what target-blocks pistons get by default), chunk budget and clock detection apply.
+     */
+    REDUCE,
+    /**
+     * The piston event is cancelled.
+     */
+    CANCEL
+}
@@ -0,0 +1,255 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects clock-driven pistons by counting how often each piston position extends, and puts pistons
+ * above the configured rate into frequency-divided mode where only every Nth extension is allowed.
+ * <p>
+ * Only extensions are counted and divided: a piston whose extension was skipped stays retracted,
+ * so it never fires the matching retract and extend/retract pairs stay consistent.
+ * Positions live in open-addressed primitive arrays per world; idle positions are evicted when the table fills up,
+ * and the table never grows past the configured maximum (further new pistons are simply not tracked).
+ * Tables are split into lock stripes by area (see {@link BlockKeys#stripe}) so Folia region threads don't contend.
+ */
+final class PistonClockDetector {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 128; // Must be a power of two
+    private static final int STRIPES = 32; // Must be a power of two
+
+    private final long windowNanos;
+    private final double enterRate;
+    private final double exitRate;
+    private final int divider;
+    private final int maxTracked;
+    private final long idleNanos;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param windowSeconds      Length of the window the extension rate is measured over.
+     * @param thresholdPerSecond Extensions per second above which a piston is divided. It leaves divided mode below half that rate.
+     * @param divider            Only every Nth extension of a divided piston is allowed.
+     * @param maxTracked         Upper bound on tracked positions per world (approximate, it is split over the lock stripes).
+     * @param idleSeconds        Positions not seen for this long can be evicted.
+     */
+    PistonClockDetector(double windowSeconds, double thresholdPerSecond, int divider, int maxTracked, long idleSeconds) {
+        this.windowNanos = Math.max(1L, (long) (windowSeconds * NANOS_PER_SECOND));
+        this.enterRate = thresholdPerSecond;
+        this.exitRate = thresholdPerSecond / 2;
+        this.divider = Math.max(1, divider);
+        // The cap applies per stripe, so spread it over them
+        this.maxTracked = Math.max(INITIAL_CAPACITY / 2, maxTracked / STRIPES);
+        this.idleNanos = Math.max(1L, idleSeconds) * NANOS_PER_SECOND;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records an extension of the piston at the packed position.
+     *
+     * @param enforce If false the extension is only counted (rates and divided mode stay up to date) and always allowed.
+     * @return true if the extension may go ahead, false if it is one of the cycles skipped by frequency division.
+     */
+    boolean allowExtend(World world, long pistonKey, boolean enforce) {
+        long now = System.nanoTime();
+        Stripe stripe = stripes[BlockKeys.stripe(BlockKeys.blockX(pistonKey) >> 4, BlockKeys.blockZ(pistonKey) >> 4, STRIPES)];
+        synchronized (stripe) {
+            return allowExtend(stripe, world, pistonKey, now, enforce);
+        }
+    }
+
+    private boolean allowExtend(Stripe stripe, World world, long pistonKey, long now, boolean enforce) {
+        Table table = stripe.worlds.get(world.getUID());
+        if (table == null) {
+            table = new Table();
+            stripe.worlds.put(world.getUID(), table);
+        }
+        int slot = table.slotFor(pistonKey, now);
+        if (slot < 0) {
+            return true; // Table is full of active pistons, this one is not tracked
+        }
+        table.lastSeen[slot] = now;
+
+        // Close the window and re-evaluate the mode once it has elapsed
+        long elapsed = now - table.windowStart[slot];
+        if (elapsed >= windowNanos) {
+            double rate = table.count[slot] * (double) NANOS_PER_SECOND / elapsed;
+            if (rate >= enterRate) {
+                table.divided[slot] = true;
+            } else if (rate < exitRate) {
+                table.divided[slot] = false;
+            } // In between: keep the current mode, so pistons near the threshold don't flap
+            table.windowStart[slot] = now;
+            table.count[slot] = 0;
+        }
+        table.count[slot]++;
+
+        if (!enforce || !table.divided[slot]) {
+            return true;
+        }
+        if (++table.cycle[slot] >= divider) {
+            table.cycle[slot] = 0;
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * @return Number of extensions skipped by frequency division.
+     */
+    long skipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return Number of tracked pistons currently in frequency-divided mode.
+     */
+    int dividedPistons() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Table table : stripe.worlds.values()) {
+                    for (int i = 0; i < table.keys.length; i++) {
+                        if (table.keys[i] != EMPTY_KEY && table.divided[i]) {
+                            total++;
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    int trackedPistons() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Table table : stripe.worlds.values()) {
+                    total += table.size;
+                }
+            }
+        }
+        return total;
+    }
+
+    private static final class Stripe {
+        private final Map<UUID, Table> worlds = new HashMap<>();
+    }
+
+    /**
+     * Open-addressed (linear probing) per-position state for one world.
+     */
+    private final class Table {
+        private long[] keys;
+        private long[] windowStart;
+        private long[] lastSeen;
+        private int[] count;
+        private int[] cycle;
+        private boolean[] divided;
+        private int size;
+
+        Table() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            windowStart = new long[capacity];
+            lastSeen = new long[capacity];
+            count = new int[capacity];
+            cycle = new int[capacity];
+            divided = new boolean[capacity];
+            Arrays.fill(keys, EMPTY_KEY);
+        }
+
+        /**
+         * @return The slot of the position, inserting it if new, or -1 if there is no room for it.
+         */
+        int slotFor(long key, long now) {
+            int mask = keys.length - 1;
+            int slot = BlockKeys.mix(key) & mask;
+            while (keys[slot] != EMPTY_KEY) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if ((size + 1) * 2 > keys.length) {
+                if (!rehash(now)) {
+                    return -1;
+                }
+                return slotFor(key, now);
+            }
+            keys[slot] = key;
+            windowStart[slot] = now;
+            lastSeen[slot] = now;
+            count[slot] = 0;
+            cycle[slot] = 0;
+            divided[slot] = false;
+            size++;
+            return slot;
+        }
+
+        /**
+         * Rebuilds the table without idle positions, growing it if needed and allowed.
+         *
+         * @return false if the table is still full after evicting idle positions.
+         */
+        private boolean rehash(long now) {
+            long[] oldKeys = keys;
+            long[] oldWindowStart = windowStart;
+            long[] oldLastSeen = lastSeen;
+            int[] oldCount = count;
+            int[] oldCycle = cycle;
+            boolean[] oldDivided = divided;
+
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY && now - oldLastSeen[i] < idleNanos) {
+                    live++;
+                }
+            }
+            if (live + 1 > maxTracked) {
+                return false; // Every tracked piston is active, don't evict them for a newcomer
+            }
+            int capacity = oldKeys.length;
+            while ((live + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+
+            allocate(capacity);
+            size = 0;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY_KEY || now - oldLastSeen[i] >= idleNanos) {
+                    continue;
+                }
+                int slot = BlockKeys.mix(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY_KEY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                windowStart[slot] = oldWindowStart[i];
+                lastSeen[slot] = oldLastSeen[i];
+                count[slot] = oldCount[i];
+                cycle[slot] = oldCycle[i];
+                divided[slot] = oldDivided[i];
+                size++;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,705 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent; // Paper tick end, used to flush batched moves
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Piston; // Import Piston data type
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority; // Import EventPriority
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockPistonEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The piston event listener and the custom (reduced update) piston move logic.
+ * Kept separate from the plugin class so it only depends on the Bukkit API and the settings it is given,
+ * which also lets the benchmarks construct it without a running server.
+ */
+final class PistonHandler implements Listener {
+
+    private final Plugin plugin;
+    private final Logger logger;
+    // Hot-path warnings go through here so they can't flood the console
+    private final RateLimitedLogger warnings;
+    // Prebuilt piston/head BlockData
+    private final PistonStates pistonStates;
+
+    // Current config snapshot, replaced as a whole on reload - read it once per event
+    private volatile ReducerSettings settings = ReducerSettings.disabled();
+
+    PistonHandler(Plugin plugin, PistonStates pistonStates, RateLimitedLogger warnings) {
+        this.plugin = plugin;
+        this.logger = plugin.getLogger();
+        this.pistonStates = pistonStates;
+        this.warnings = warnings;
+    }
+
+    // --- Settings (applied by the plugin on enable and reload) ---
+
+    ReducerSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Swaps in a new config snapshot. If the move batcher changed, whatever the old one still had queued is applied,
+     * and a replaced trace recorder is closed.
+     * Events already in flight finish with the snapshot they started with.
+     */
+    void applySettings(ReducerSettings newSettings) {
+        ReducerSettings old = settings;
+        settings = newSettings;
+        PistonMoveBatcher oldBatcher = old.moveBatcher();
+        if (oldBatcher != null && oldBatcher != newSettings.moveBatcher()) {
+            oldBatcher.flush();
+        }
+        PistonTraceRecorder oldTrace = old.traceRecorder();
+        if (oldTrace != null && oldTrace != newSettings.traceRecorder()) {
+            oldTrace.close();
+        }
+    }
+
+    // --- Piston Event Handlers ---
+    // Use a lower priority to let other plugins potentially modify/cancel first if needed
+    // This synchronous handler should be executed by Folia on the correct region's thread.
+    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        ReducerSettings current = settings; // One snapshot for the whole event, a reload may swap it
+        // The event is judged by the block being pushed
+        // Cache relative block for slight optimization
+        Block blockInFront = event.getBlock().getRelative(event.getDirection());
+        Material frontType = blockInFront.getType();
+        handleDecision(current, loadTier(current), event, event.getBlocks(), event.getDirection(), true, frontType);
+    }
+
+    // This synchronous handler should be executed by Folia on the correct region's thread.
+    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        ReducerSettings current = settings; // One snapshot for the whole event, a reload may swap it
+        List<Block> pulledBlocks = event.getBlocks();
+        Material triggerType;
+        if (!pulledBlocks.isEmpty()) {
+            // Judge by the block directly attached to the piston head
+            Block directlyPulledBlock = pulledBlocks.get(pulledBlocks.size() - 1);
+            triggerType = directlyPulledBlock.getType();
+        } else {
+            // Optimization: Only check blockRetractingInto if no blocks are being pulled
+            // If no blocks are pulled (just the head retracting), judge by the space it retracts into (usually AIR)
+            Block blockRetractingInto = event.getBlock().getRelative(event.getDirection());
+            triggerType = blockRetractingInto.getType();
+        }
+        handleDecision(current, loadTier(current), event, pulledBlocks, event.getDirection(), false, triggerType);
+    }
+
+    /**
+     * @return The current load tier, or SHED (everything configured applies) if adaptive tiers are disabled.
+     */
+    private static LoadTiers.Tier loadTier(ReducerSettings current) {
+        LoadTiers tiers = current.loadTiers();
+        return tiers != null ? tiers.tier() : LoadTiers.Tier.SHED;
+    }
+
+    /**
+     * Runs the action the rules pick for this event (see {@link PistonAction}).
+     * The load tier only scales the load optimizations: in CALM, REDUCE falls back to vanilla, and below SHED
+     * the chunk budget and clock division are skipped. VANILLA and CANCEL rules apply in every tier.
+     * <p>
+     * The outcome (what is actually done) is settled first, without touching the world, so metrics and the trace
+     * record it next to the rules' action while the moved blocks are still in place.
+     *
+     * @param tier    The load tier this event is handled in.
+     * @param trigger The block type the event is judged by.
+     */
+    private void handleDecision(ReducerSettings current, LoadTiers.Tier tier, BlockPistonEvent event, List<Block> movedBlocks, BlockFace direction, boolean isExtending, Material trigger) {
+        Block pistonBlock = event.getBlock();
+        PistonAction action = current.rules().decide(pistonBlock.getWorld(), pistonBlock.getX(), pistonBlock.getY(), pistonBlock.getZ(),
+                trigger, movedBlocks);
+        boolean shed = tier == LoadTiers.Tier.SHED;
+        boolean overBudget = false;
+        PistonAction outcome;
+        switch (action) {
+            // Left completely to vanilla, no budget either
+            case VANILLA -> outcome = PistonAction.VANILLA;
+            case CANCEL -> outcome = PistonAction.CANCEL;
+            case THROTTLE -> {
+                overBudget = shed && !withinChunkBudget(current, pistonBlock);
+                outcome = overBudget ? PistonAction.THROTTLE : PistonAction.VANILLA;
+            }
+            default -> {
+                // REDUCE: clock detection first, then the tier, then the chunk budget.
+                // Every extension is counted so the clock history is complete whatever the tier, division only applies in SHED.
+                PistonClockDetector clocks = current.clockDetector();
+                if (isExtending && clocks != null && !clocks.allowExtend(pistonBlock.getWorld(),
+                        BlockKeys.blockKey(pistonBlock.getX(), pistonBlock.getY(), pistonBlock.getZ()), shed)) {
+                    outcome = PistonAction.THROTTLE; // Clock-driven piston in divided mode, skipped
+                } else if (tier == LoadTiers.Tier.CALM) {
+                    outcome = PistonAction.VANILLA; // Healthy server, the move is left to vanilla
+                } else {
+                    overBudget = shed && !withinChunkBudget(current, pistonBlock);
+                    outcome = overBudget ? PistonAction.THROTTLE : PistonAction.REDUCE;
+                }
+            }
+        }
+
+        recordEvent(current, pistonBlock, trigger, outcome != PistonAction.VANILLA);
+        PistonTraceRecorder trace = current.traceRecorder();
+        if (trace != null) {
+            trace.record(pistonBlock, direction, isExtending, action, outcome, trigger, movedBlocks);
+        }
+
+        switch (outcome) {
+            case VANILLA -> {
+            }
+            case CANCEL -> event.setCancelled(true);
+            case THROTTLE -> {
+                event.setCancelled(true);
+                // Over-budget reduced moves are re-run later instead if the limiter is set to DEFER
+                if (overBudget && action == PistonAction.REDUCE && current.deferOverBudget()) {
+                    deferPistonMove(pistonBlock, movedBlocks, direction, isExtending, current.deferTicks());
+                }
+            }
+            case REDUCE -> handlePistonEvent(current, event, movedBlocks, direction, isExtending);
+        }
+    }
+
+    private void recordEvent(ReducerSettings current, Block pistonBlock, Material trigger, boolean intercepted) {
+        PistonMetrics currentMetrics = current.metrics();
+        if (currentMetrics != null) {
+            currentMetrics.recordEvent(pistonBlock.getWorld(), trigger, intercepted,
+                    BlockKeys.blockKey(pistonBlock.getX(), pistonBlock.getY(), pistonBlock.getZ()));
+        }
+    }
+
+    // Applies the moves queued during this tick (batching mode only) and feeds the tick duration to the load tiers
+    @EventHandler
+    public void onTickEnd(ServerTickEndEvent event) {
+        ReducerSettings current = settings;
+        PistonMoveBatcher batcher = current.moveBatcher();
+        if (batcher != null) {
+            batcher.flush();
+        }
+        LoadTiers tiers = current.loadTiers();
+        if (tiers != null) {
+            tiers.recordTick(event.getTickDuration());
+        }
+    }
+
+    /**
+     * Takes a token from the piston's chunk budget.
+     *
+     * @return true if the event may continue, false if its chunk is over budget.
+     */
+    private static boolean withinChunkBudget(ReducerSettings current, Block pistonBlock) {
+        ChunkPistonLimiter limiter = current.chunkLimiter();
+        return limiter == null || limiter.tryAcquire(pistonBlock.getWorld(), pistonBlock.getX() >> 4, pistonBlock.getZ() >> 4);
+    }
+
+    /**
+     * Re-runs a throttled piston move after the configured delay, on the piston's region thread.
+     * The move is dropped if the piston or the moved blocks changed in the meantime, or if the chunk is still over budget.
+     */
+    private void deferPistonMove(Block pistonBlock, List<Block> movedBlocks, BlockFace direction, boolean isExtending, int deferTicks) {
+        final Material pistonMaterial = pistonBlock.getType();
+        // Copy the list and remember what was being moved, the event's list must not be kept around
+        final List<Block> blocks = new ArrayList<>(movedBlocks);
+        final Material[] expectedTypes = new Material[blocks.size()];
+        for (int i = 0; i < expectedTypes.length; i++) {
+            expectedTypes[i] = blocks.get(i).getType();
+        }
+
+        plugin.getServer().getRegionScheduler().runDelayed(plugin, pistonBlock.getLocation(), task -> {
+            if (pistonBlock.getType() != pistonMaterial
+                    || !(pistonBlock.getBlockData() instanceof Piston piston)
+                    || piston.isExtended() == isExtending) {
+                return; // Piston changed or already moved
+            }
+            // Power may have flipped while we waited (pistons also take power from the block above)
+            boolean powered = pistonBlock.isBlockIndirectlyPowered() || pistonBlock.getRelative(BlockFace.UP).isBlockIndirectlyPowered();
+            if (powered != isExtending) {
+                return;
+            }
+            for (int i = 0; i < expectedTypes.length; i++) {
+                if (blocks.get(i).getType() != expectedTypes[i]) {
+                    return; // Something else moved or replaced the blocks
+                }
+            }
+            // Use whatever config is current when the move runs, a reload may have happened in between
+            ReducerSettings current = settings;
+            ChunkPistonLimiter limiter = current.chunkLimiter();
+            if (limiter != null && !limiter.tryAcquire(pistonBlock.getWorld(), pistonBlock.getX() >> 4, pistonBlock.getZ() >> 4)) {
+                return; // Still over budget, drop it
+            }
+            movePistonBlocks(current, pistonBlock, pistonMaterial, blocks, direction, isExtending);
+        }, deferTicks);
+    }
+
+    /**
+     * Handles the common logic for both piston extend and retract events SYNCHRONOUSLY
+     * ONLY IF the target block condition was met by the caller.
+     *
+     * @param current    The config snapshot this event is handled with.
+     * @param event      The original BlockPistonEvent.
+     * @param movedBlocks The list of blocks that would be moved by the piston.
+     * @param direction  The direction the piston is facing/moving.
+     * @param isExtending True if the piston is extending, false if retracting.
+     */
+    private void handlePistonEvent(ReducerSettings current, BlockPistonEvent event, List<Block> movedBlocks, BlockFace direction, boolean isExtending) {
+        AllocationCounter allocations = current.allocationCounter(); // null unless debug.track-allocations is on
+        long allocationStart = allocations != null ? allocations.start() : 0;
+        PistonMetrics currentMetrics = current.metrics();
+        long startNanos = currentMetrics != null ? System.nanoTime() : 0;
+
+        try {
+            Block pistonBlock = event.getBlock();
+            Material pistonMaterial = pistonBlock.getType(); // Get piston type (normal/sticky)
+
+            // Basic check: Is the piston block's chunk loaded? (Should be loaded if event fired)
+            if (!isChunkLoaded(pistonBlock.getWorld(), pistonBlock.getX() >> 4, pistonBlock.getZ() >> 4)) {
+                warnings.warning("unloaded-piston", () -> "Piston event triggered for unloaded piston block at: " + pistonBlock.getLocation());
+                return; // Don't process if the piston itself isn't loaded
+            }
+
+            // --- The Core Logic: Cancel Sync, Move Sync ---
+
+            // 1. Cancel the original event SYNCHRONOUSLY to prevent default behavior
+            event.setCancelled(true);
+            // logger.info("Cancelled piston event for target block at " + pistonBlock.getLocation()); // Debug log
+
+            movePistonBlocks(current, pistonBlock, pistonMaterial, movedBlocks, direction, isExtending);
+        } finally {
+            // Every started measurement is ended, early returns included
+            if (currentMetrics != null) {
+                currentMetrics.recordHandleNanos(System.nanoTime() - startNanos);
+            }
+            if (allocations != null) {
+                allocations.stop(allocationStart);
+            }
+        }
+    }
+
+    /**
+     * Moves the blocks and updates the piston/head without physics, in place of the vanilla piston move.
+     * In selective mode, positions with a neighbor that reacts to changes (see {@link NeighborUpdates}) are written last,
+     * with physics, once everything else is in its final place.
+     * Used directly by the event handler and by deferred (throttled) moves.
+     * Positions are kept as packed longs in this thread's {@link MoveBuffer}, so no lists or Locations are created.
+     * With the move-plan cache enabled, a repeating move loads its plan instead of capturing and planning it again.
+     * Structure moves (slime/honey pushes, see {@link StructureMover}) are written in one consolidated pass.
+     *
+     * @param current        The config snapshot the move is done with.
+     * @param pistonBlock    The piston block itself.
+     * @param pistonMaterial The material of the piston (PISTON or STICKY_PISTON).
+     * @param movedBlocks    The list of blocks to move.
+     * @param direction      The direction the piston is facing/moving.
+     * @param isExtending    True if the piston is extending, false if retracting.
+     */
+    private void movePistonBlocks(ReducerSettings current, Block pistonBlock, Material pistonMaterial, List<Block> movedBlocks, BlockFace direction, boolean isExtending) {
+        // Batching mode: queue the writes for the end of the tick instead of applying them now
+        PistonMoveBatcher batcher = current.moveBatcher();
+        if (batcher != null) {
+            queuePistonMove(batcher, pistonBlock, pistonMaterial, movedBlocks, direction, isExtending);
+            return;
+        }
+
+        World world = pistonBlock.getWorld();
+        long pistonKey = BlockKeys.blockKey(pistonBlock.getX(), pistonBlock.getY(), pistonBlock.getZ());
+        // Cache piston head position - calculated once
+        long headKey = BlockKeys.blockKey(pistonBlock.getX() + direction.getModX(), pistonBlock.getY() + direction.getModY(),
+                pistonBlock.getZ() + direction.getModZ());
+
+        // Held for the whole move, it also marks the physics events of our own writes (see MovePlanListener)
+        MoveBuffer buffer = MoveBuffer.acquire();
+        try {
+            // Optimization: Handle retraction with no moved blocks separately
+            if (!isExtending && movedBlocks.isEmpty()) {
+                // Only need to handle piston state and head removal
+                updatePistonStateAndHead(current, null, pistonBlock, pistonMaterial, headKey, direction, false, null);
+                return; // Skip the rest of the logic for moved blocks
+            }
+
+            // The piston must still be in the state the event started from, checked before any block is written
+            // (cached plans included, they would otherwise rewrite the piston and head blindly)
+            if (pistonBlock.getType() != pistonMaterial || !(pistonBlock.getBlockData() instanceof Piston piston)) {
+                warnings.warning("piston-changed", () -> "Block at " + pistonBlock.getLocation() + " is no longer the expected piston!");
+                return;
+            }
+            if (piston.isExtended() == isExtending) {
+                return; // Piston state already matches, nothing to move
+            }
+            BlockFace pistonFacing = piston.getFacing();
+
+            MovePlanCache plans = current.movePlans(); // null when the plan cache is disabled
+            MovePlan plan = plans != null ? plans.get(world, pistonKey, direction, isExtending, movedBlocks) : null;
+            if (plan != null) {
+                plan.load(buffer);
+            } else {
+                // 2. Capture positions and data of the moved blocks into the reusable buffer
+                int unloaded = buffer.capture(world, movedBlocks);
+                if (unloaded >= 0) {
+                    warnings.warning("unloaded-moved-block", () -> "Skipping unloaded block during piston movement preparation: " + movedBlocks.get(unloaded).getLocation());
+                    // If a block isn't loaded, abort the custom handling. Vanilla won't run either as we cancelled.
+                    // This might leave things in a slightly odd state if some blocks were loaded and others weren't.
+                    return;
+                }
+                boolean cacheable = planMove(buffer, world, pistonKey, headKey, direction, current.selectiveUpdates());
+                if (plans != null && cacheable) {
+                    plans.put(world, pistonKey, MovePlan.of(buffer, direction, isExtending, pistonKey, headKey, current.selectiveUpdates()));
+                }
+            }
+
+            if (current.rules().isStructureMove(buffer)) {
+                // Slime/honey contraption: one write per changed position, per chunk section, updates only at the edges
+                collectWrites(current, buffer, world, false);
+                StructureMover.apply(buffer, world, pistonKey, headKey, current.blockWriter());
+            } else {
+                applyMove(current, buffer, world);
+            }
+
+            // C) Manually update the piston block state and head
+            updatePistonStateAndHead(current, buffer, pistonBlock, pistonMaterial, headKey, direction, isExtending, pistonFacing);
+
+            // D) Selective mode: the held-back writes, with physics so the neighbors that react to them get their update
+            for (int i = 0; i < buffer.deferredSize; i++) {
+                long position = buffer.deferredPositions[i];
+                world.getBlockAt(BlockKeys.blockX(position), BlockKeys.blockY(position), BlockKeys.blockZ(position))
+                        .setBlockData(buffer.deferredData[i], true);
+            }
+
+            // Reduced moves fire no block events, so tell the plan cache which spots this move changed
+            if (plans != null) {
+                invalidatePlans(plans, world, buffer, pistonKey, headKey);
+            }
+
+        } catch (Exception e) {
+            // Log any errors occurring synchronously
+            logger.log(Level.SEVERE, "Error during synchronous piston block manipulation for " + pistonBlock.getLocation(), e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Works out the writes of a captured move: destination and {@link MoveBuffer} flags per moved block,
+     * and whether the head spot needs physics.
+     *
+     * @return true if the plan can be cached (every destination was loaded).
+     */
+    private static boolean planMove(MoveBuffer buffer, World world, long pistonKey, long headKey, BlockFace direction, boolean selective) {
+        int dx = direction.getModX();
+        int dy = direction.getModY();
+        int dz = direction.getModZ();
+        boolean cacheable = true;
+        for (int i = 0; i < buffer.size; i++) {
+            long from = buffer.positions[i];
+            int x = BlockKeys.blockX(from);
+            int y = BlockKeys.blockY(from);
+            int z = BlockKeys.blockZ(from);
+            long to = BlockKeys.blockKey(x + dx, y + dy, z + dz);
+            buffer.destinations[i] = to;
+            int flags = 0;
+
+            // Only clear/place if the data is not AIR (minor optimization)
+            if (buffer.data[i].getMaterial() != Material.AIR) {
+                // Selective mode: a spot that stays empty is cleared last if a neighbor reacts to it
+                // (spots another block moves into get their update from that placement, the head spot from the head)
+                if (selective && from != headKey && !buffer.isSource(BlockKeys.blockKey(x - dx, y - dy, z - dz))
+                        && NeighborUpdates.needsUpdate(buffer, world, x, y, z, pistonKey)) {
+                    flags |= MoveBuffer.CLEAR_DEFERRED;
+                } else {
+                    flags |= MoveBuffer.CLEAR;
+                }
+
+                // Make sure we aren't trying to place where the head should be
+                if (to == headKey) {
+                    flags |= MoveBuffer.PLACE_AT_HEAD;
+                } else if (!buffer.isChunkLoaded(world, (x + dx) >> 4, (z + dz) >> 4)) {
+                    flags |= MoveBuffer.PLACE_UNLOADED;
+                    cacheable = false;
+                } else if (selective && NeighborUpdates.needsUpdate(buffer, world, x + dx, y + dy, z + dz, pistonKey)) {
+                    flags |= MoveBuffer.PLACE_DEFERRED;
+                } else {
+                    flags |= MoveBuffer.PLACE;
+                }
+            }
+            if (!buffer.isSource(to)) {
+                flags |= MoveBuffer.MAY_BREAK;
+            }
+            buffer.flags[i] = flags;
+        }
+        buffer.headPhysics = selective && NeighborUpdates.needsUpdate(buffer, world,
+                BlockKeys.blockX(headKey), BlockKeys.blockY(headKey), BlockKeys.blockZ(headKey), pistonKey);
+        return cacheable;
+    }
+
+    /**
+     * Clears the sources and places the moved blocks as planned in the buffer (steps A and B of the move),
+     * through the configured {@link BlockWriter}.
+     */
+    private void applyMove(ReducerSettings current, MoveBuffer buffer, World world) {
+        // Folia ensures this code runs on the correct region thread because it's part of the event handler.
+        // Chunks can't unload in the middle of this synchronous handler, so sources are not re-checked.
+        collectWrites(current, buffer, world, true);
+        current.blockWriter().write(world, buffer, buffer.writeOrder, buffer.writeSize);
+    }
+
+    /**
+     * Turns the planned move into one write per changed position, sorted by chunk section: the block moving into each
+     * destination, and air for each source nothing moves into. Clearing first and placing after would leave the same
+     * final state, written once here.
+     *
+     * @param holdSelective Hold back the selective (deferred) writes for the physics pass instead of writing them.
+     */
+    private void collectWrites(ReducerSettings current, MoveBuffer buffer, World world, boolean holdSelective) {
+        DropAggregator drops = current.dropAggregator(); // null when drop aggregation is disabled
+        BlockData air = pistonStates.air();
+
+        // A) Selective mode: sources that stay empty are cleared last, with physics
+        if (holdSelective) {
+            for (int i = 0; i < buffer.size; i++) {
+                if ((buffer.flags[i] & MoveBuffer.CLEAR_DEFERRED) != 0) {
+                    buffer.defer(buffer.positions[i], air);
+                }
+            }
+        }
+
+        // B) Every destination gets the block moving into it
+        for (int i = 0; i < buffer.size; i++) {
+            int flags = buffer.flags[i];
+            long to = buffer.destinations[i];
+            int x = BlockKeys.blockX(to);
+            int y = BlockKeys.blockY(to);
+            int z = BlockKeys.blockZ(to);
+            if ((flags & MoveBuffer.PLACE_AT_HEAD) != 0) {
+                // This case should be rare if event.getBlocks() excludes the head location, log if it happens.
+                warnings.warning("place-at-head", () -> "Attempted to place moved block where piston head should be at " + x + ", " + y + ", " + z);
+                continue;
+            }
+            if ((flags & (MoveBuffer.PLACE | MoveBuffer.PLACE_DEFERRED | MoveBuffer.PLACE_UNLOADED)) == 0) {
+                continue; // AIR, the target becomes AIR from its own clear or stays as it is
+            }
+            // Re-checked for cached plans, the destination chunk may have unloaded since
+            if ((flags & MoveBuffer.PLACE_UNLOADED) != 0 || !buffer.isChunkLoaded(world, x >> 4, z >> 4)) {
+                warnings.warning("unloaded-destination", () -> "Skipping placement at unloaded location: " + x + ", " + y + ", " + z);
+                // Inconsistency introduced here if target chunk unloads!
+                continue;
+            }
+            if (drops != null && (flags & MoveBuffer.MAY_BREAK) != 0) {
+                Block target = world.getBlockAt(x, y, z);
+                if (!target.getType().isAir()) {
+                    drops.collect(target); // Pushed into a breakable block (bamboo, cane...), keep its drops
+                }
+            }
+            if (holdSelective && (flags & MoveBuffer.PLACE_DEFERRED) != 0) {
+                buffer.defer(to, buffer.data[i]);
+            } else {
+                buffer.addWrite(to, buffer.data[i]);
+            }
+        }
+
+        // C) Sources nothing was placed into become air
+        int clearFlags = holdSelective ? MoveBuffer.CLEAR : MoveBuffer.CLEAR | MoveBuffer.CLEAR_DEFERRED;
+        for (int i = 0; i < buffer.size; i++) {
+            if ((buffer.flags[i] & clearFlags) != 0 && !buffer.isWritten(buffer.positions[i])) {
+                buffer.addWrite(buffer.positions[i], air);
+            }
+        }
+
+        buffer.sortWritesBySection();
+    }
+
+    /**
+     * Drops cached plans of other pistons that cover a spot this move changed.
+     */
+    private static void invalidatePlans(MovePlanCache plans, World world, MoveBuffer buffer, long pistonKey, long headKey) {
+        for (int i = 0; i < buffer.size; i++) {
+            long from = buffer.positions[i];
+            long to = buffer.destinations[i];
+            plans.invalidate(world, BlockKeys.blockX(from), BlockKeys.blockY(from), BlockKeys.blockZ(from), pistonKey);
+            plans.invalidate(world, BlockKeys.blockX(to), BlockKeys.blockY(to), BlockKeys.blockZ(to), pistonKey);
+        }
+        plans.invalidate(world, BlockKeys.blockX(headKey), BlockKeys.blockY(headKey), BlockKeys.blockZ(headKey), pistonKey);
+    }
+
+    /**
+     * Batching-mode counterpart of the move above: records the same writes (clear, place, piston, head)
+     * in the move batcher. Writes are merged per block, so the order they are queued in decides the final state.
+     * Loaded checks are left to the batcher, which does them once per chunk.
+     */
+    private void queuePistonMove(PistonMoveBatcher batcher, Block pistonBlock, Material pistonMaterial, List<Block> movedBlocks, BlockFace direction, boolean isExtending) {
+        World world = pistonBlock.getWorld();
+        int dx = direction.getModX();
+        int dy = direction.getModY();
+        int dz = direction.getModZ();
+        int headX = pistonBlock.getX() + dx;
+        int headY = pistonBlock.getY() + dy;
+        int headZ = pistonBlock.getZ() + dz;
+        BlockData air = pistonStates.air();
+
+        MoveBuffer buffer = MoveBuffer.acquire();
+        try {
+            // The piston must still be in the state the event started from, checked before anything is queued
+            // (the event is already cancelled, a half-queued move would be flushed without its piston and head)
+            if (pistonBlock.getType() != pistonMaterial || !(pistonBlock.getBlockData() instanceof Piston piston)) {
+                warnings.warning("piston-changed", () -> "Block at " + pistonBlock.getLocation() + " is no longer the expected piston!");
+                return;
+            }
+            if (piston.isExtended() == isExtending) {
+                return; // Piston state already matches, nothing to move
+            }
+
+            // Read every moved block before queueing anything (the world itself is untouched until the flush)
+            int count = movedBlocks.size();
+            buffer.capture(world, movedBlocks);
+            if (buffer.size < count) {
+                warnings.warning("unloaded-moved-block", () -> "Skipping unloaded block during piston movement preparation: " + movedBlocks.get(buffer.size).getLocation());
+                return;
+            }
+
+            // A) Clear the original locations
+            for (int i = count - 1; i >= 0; i--) {
+                long from = buffer.positions[i];
+                batcher.queueBlock(world, BlockKeys.blockX(from), BlockKeys.blockY(from), BlockKeys.blockZ(from), air, false);
+            }
+
+            // B) Place blocks in the new locations, overriding the clears where they overlap
+            for (int i = 0; i < count; i++) {
+                long from = buffer.positions[i];
+                int x = BlockKeys.blockX(from) + dx;
+                int y = BlockKeys.blockY(from) + dy;
+                int z = BlockKeys.blockZ(from) + dz;
+                if (x == headX && y == headY && z == headZ) {
+                    warnings.warning("place-at-head", () -> "Attempted to place moved block where piston head should be at " + x + ", " + y + ", " + z);
+                    continue;
+                }
+                if (buffer.data[i].getMaterial() != Material.AIR) {
+                    // Drops of a block pushed into are taken by the batcher when it overwrites it
+                    batcher.queueBlock(world, x, y, z, buffer.data[i], !buffer.isSource(BlockKeys.blockKey(x, y, z)));
+                }
+            }
+
+            // C) Piston state and head
+            batcher.queuePistonUpdate(world, pistonBlock.getX(), pistonBlock.getY(), pistonBlock.getZ(),
+                    pistonStates.piston(pistonMaterial, piston.getFacing(), isExtending));
+
+            if (isExtending) {
+                batcher.queueBlock(world, headX, headY, headZ, pistonStates.head(pistonMaterial, direction),
+                        !buffer.isSource(BlockKeys.blockKey(headX, headY, headZ)));
+            } else if (!batcher.hasPendingWrite(world, headX, headY, headZ)
+                    && world.getBlockAt(headX, headY, headZ).getType() == Material.PISTON_HEAD) {
+                // Remove the head unless a pulled block is already queued into its place
+                batcher.queueBlock(world, headX, headY, headZ, air, false);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error queueing batched piston move for " + pistonBlock.getLocation(), e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Helper method to update the piston block's state and place/remove the piston head.
+     * Uses the prebuilt {@link PistonStates} instead of creating new BlockData.
+     *
+     * @param current The config snapshot (drop aggregation, selective updates).
+     * @param buffer The move's buffer for cached loaded checks, or null if there is none.
+     * @param pistonBlock The piston block itself.
+     * @param pistonMaterial The material of the piston (PISTON or STICKY_PISTON).
+     * @param headKey The packed position where the piston head should be/was.
+     * @param direction The direction the piston is facing.
+     * @param isExtending The target state (true for extended, false for retracted).
+     * @param knownFacing The piston's facing if the caller already validated its BlockData and state, or null to do it here.
+     */
+    private void updatePistonStateAndHead(ReducerSettings current, MoveBuffer buffer, Block pistonBlock, Material pistonMaterial, long headKey, BlockFace direction, boolean isExtending, BlockFace knownFacing) {
+        try {
+            Block currentPistonBlock = pistonBlock; // Use the event's block object (should be safe in sync event)
+            if (currentPistonBlock.getType() != pistonMaterial) { // Check it's still the same piston type
+                warnings.warning("piston-changed", () -> "Block at " + pistonBlock.getLocation() + " is no longer the expected piston material!");
+                return;
+            }
+            BlockFace facing = knownFacing;
+            if (facing == null) {
+                // Not validated by the caller: read the piston's BlockData to validate it and get its facing
+                if (!(currentPistonBlock.getBlockData() instanceof Piston piston)) {
+                    warnings.warning("piston-changed", () -> "Block at " + pistonBlock.getLocation() + " is no longer a Piston BlockData type!");
+                    return;
+                }
+                if (piston.isExtended() == isExtending) {
+                    return; // Piston state already matched, do nothing
+                }
+                facing = piston.getFacing();
+            }
+            // Apply physics for the piston itself ONLY.
+            currentPistonBlock.setBlockData(pistonStates.piston(pistonMaterial, facing, isExtending), true);
+
+            // Handle the piston head block
+            World world = currentPistonBlock.getWorld();
+            int headX = BlockKeys.blockX(headKey);
+            int headY = BlockKeys.blockY(headKey);
+            int headZ = BlockKeys.blockZ(headKey);
+            if (!isChunkLoaded(world, headX >> 4, headZ >> 4)) {
+                warnings.warning("unloaded-head", () -> "Piston head location unloaded: " + headX + ", " + headY + ", " + headZ);
+                return;
+            }
+            Block headBlock = world.getBlockAt(headX, headY, headZ);
+            // Selective mode: physics only if a neighbor reacts to the head spot (planned with the move if there is one)
+            boolean headPhysics = buffer != null ? buffer.headPhysics
+                    : current.selectiveUpdates() && NeighborUpdates.needsUpdate(null, world, headX, headY, headZ,
+                    BlockKeys.blockKey(currentPistonBlock.getX(), currentPistonBlock.getY(), currentPistonBlock.getZ()));
+            if (isExtending) {
+                // Place piston head, the moved blocks have already left this spot
+                if (current.dropAggregator() != null) {
+                    collectHeadDrops(current.dropAggregator(), headBlock);
+                }
+                headBlock.setBlockData(pistonStates.head(pistonMaterial, direction), headPhysics); // NO physics update unless selective
+            } else {
+                // Remove piston head if it exists
+                if (headBlock.getType() == Material.PISTON_HEAD) {
+                    headBlock.setType(Material.AIR, headPhysics); // NO physics update unless selective
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Error updating piston state/head for " + pistonBlock.getLocation(), e);
+        }
+    }
+
+    /**
+     * Keeps the drops of a breakable block (bamboo in front of the piston...) the extending head is placed into.
+     */
+    private static void collectHeadDrops(DropAggregator drops, Block headBlock) {
+        Material type = headBlock.getType();
+        if (!type.isAir() && type != Material.PISTON_HEAD && type != Material.MOVING_PISTON) {
+            drops.collect(headBlock);
+        }
+    }
+
+    /**
+     * Helper method to check if a chunk is loaded.
+     * Should be safe to call from the main region thread during event handling.
+     * @param world The world to check.
+     * @param chunkX The chunk x coordinate (blockX >> 4).
+     * @param chunkZ The chunk z coordinate (blockZ >> 4).
+     * @return true if the world and chunk are loaded, false otherwise.
+     */
+    private boolean isChunkLoaded(World world, int chunkX, int chunkZ) {
+        // Added null check for world which could happen if the block is invalid
+        if (world == null) {
+            return false;
+        }
+        try {
+            return world.isChunkLoaded(chunkX, chunkZ);
+        } catch (Exception e) {
+            // Catch potential exceptions (though less likely on main thread)
+            logger.log(Level.WARNING, "Error checking if chunk is loaded: " + chunkX + ", " + chunkZ, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead hot-path metrics: intercepted vs passed-through piston events per world and per material,
+ * a latency histogram of the custom move, and the hottest piston positions per world.
+ * Recording is lock-free (apart from the area-striped hotspot tables) and never allocates once a world has been seen.
+ */
+final class PistonMetrics {
+
+    private static final Material[] MATERIALS = Material.values();
+
+    private final long startedAt = System.currentTimeMillis();
+    // Indexed by the ordinal of the block that decided the event (block in front / pulled block)
+    private final AtomicLongArray interceptedByMaterial = new AtomicLongArray(MATERIALS.length);
+    private final AtomicLongArray passedByMaterial = new AtomicLongArray(MATERIALS.length);
+    private final Map<UUID, WorldMetrics> worlds = new ConcurrentHashMap<>();
+    private final LatencyHistogram handleLatency = new LatencyHistogram();
+    private final int hotspotCapacity;
+
+    PistonMetrics(int hotspotCapacity) {
+        this.hotspotCapacity = Math.max(1, hotspotCapacity);
+    }
+
+    /**
+     * Counts one piston event.
+     *
+     * @param trigger     The block type the decision was based on.
+     * @param intercepted True if the plugin handled the move, false if it was left to vanilla.
+     * @param pistonKey   Packed position of the piston (see {@link BlockKeys#blockKey}).
+     */
+    void recordEvent(World world, Material trigger, boolean intercepted, long pistonKey) {
+        WorldMetrics worldMetrics = worlds.get(world.getUID());
+        if (worldMetrics == null) {
+            worldMetrics = worlds.computeIfAbsent(world.getUID(), id -> new WorldMetrics(world.getName(), hotspotCapacity));
+        }
+        if (intercepted) {
+            interceptedByMaterial.incrementAndGet(trigger.ordinal());
+            worldMetrics.intercepted.increment();
+        } else {
+            passedByMaterial.incrementAndGet(trigger.ordinal());
+            worldMetrics.passed.increment();
+        }
+        worldMetrics.hotspots.record(pistonKey);
+    }
+
+    void recordHandleNanos(long nanos) {
+        handleLatency.record(nanos);
+    }
+
+    LatencyHistogram handleLatency() {
+        return handleLatency;
+    }
+
+    long uptimeMillis() {
+        return System.currentTimeMillis() - startedAt;
+    }
+
+    Collection<WorldMetrics> worlds() {
+        return worlds.values();
+    }
+
+    /**
+     * @return {material, intercepted, passed} for every material with at least one event, busiest first.
+     */
+    List<MaterialCount> materials() {
+        List<MaterialCount> result = new ArrayList<>();
+        for (int i = 0; i < MATERIALS.length; i++) {
+            long intercepted = interceptedByMaterial.get(i);
+            long passed = passedByMaterial.get(i);
+            if (intercepted + passed > 0) {
+                result.add(new MaterialCount(MATERIALS[i], intercepted, passed));
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.intercepted() + b.passed(), a.intercepted() + a.passed()));
+        return result;
+    }
+
+    /**
+     * Appends one CSV row per world: timestamp, world, intercepted, passed, handled count, mean/p50/p99 ns.
+     */
+    void writeCsv(Writer writer, boolean header) throws IOException {
+        if (header) {
+            writer.write("timestamp,world,intercepted,passed,handled,mean_ns,p50_ns,p99_ns\n");
+        }
+        long now = System.currentTimeMillis();
+        String latency = handleLatency.count() + "," + (long) handleLatency.meanNanos() + ","
+                + handleLatency.percentileNanos(50) + "," + handleLatency.percentileNanos(99);
+        for (WorldMetrics world : worlds.values()) {
+            writer.write(now + "," + world.name + "," + world.intercepted.sum() + "," + world.passed.sum() + "," + latency + "\n");
+        }
+    }
+
+    /**
+     * Writes a full snapshot (worlds, materials, latency, hotspots) as a JSON object.
+     */
+    void writeJson(Writer writer, int hotspotLimit) throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"timestamp\":").append(System.currentTimeMillis())
+                .append(",\"uptime_ms\":").append(uptimeMillis())
+                .append(",\"handle_latency\":{\"count\":").append(handleLatency.count())
+                .append(",\"mean_ns\":").append((long) handleLatency.meanNanos())
+                .append(",\"p50_ns\":").append(handleLatency.percentileNanos(50))
+                .append(",\"p99_ns\":").append(handleLatency.percentileNanos(99))
+                .append(",\"p999_ns\":").append(handleLatency.percentileNanos(99.9))
+                .append("},\"worlds\":[");
+        boolean first = true;
+        for (WorldMetrics world : worlds.values()) {
+            json.append(first ? "" : ",").append("{\"name\":\"").append(escape(world.name))
+                    .append("\",\"intercepted\":").append(world.intercepted.sum())
+                    .append(",\"passed\":").append(world.passed.sum())
+                    .append(",\"hotspots\":[");
+            boolean firstSpot = true;
+            for (long[] spot : world.hotspots.top(hotspotLimit)) {
+                json.append(firstSpot ? "" : ",").append("{\"x\":").append(BlockKeys.blockX(spot[0]))
+                        .append(",\"y\":").append(BlockKeys.blockY(spot[0]))
+                        .append(",\"z\":").append(BlockKeys.blockZ(spot[0]))
+                        .append(",\"events\":").append(spot[1]).append('}');
+                firstSpot = false;
+            }
+            json.append("]}");
+            first = false;
+        }
+        json.append("],\"materials\":[");
+        first = true;
+        for (MaterialCount count : materials()) {
+            json.append(first ? "" : ",").append("{\"material\":\"").append(count.material().name())
+                    .append("\",\"intercepted\":").append(count.intercepted())
+                    .append(",\"passed\":").append(count.passed()).append('}');
+            first = false;
+        }
+        json.append("]}\n");
+        writer.write(json.toString());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    record MaterialCount(Material material, long intercepted, long passed) {
+    }
+
+    static final class WorldMetrics {
+        private final String name;
+        private final LongAdder intercepted = new LongAdder();
+        private final LongAdder passed = new LongAdder();
+        private final HotspotTracker hotspots;
+
+        WorldMetrics(String name, int hotspotCapacity) {
+            this.name = name;
+            this.hotspots = new HotspotTracker(hotspotCapacity);
+        }
+
+        String name() {
+            return name;
+        }
+
+        long intercepted() {
+            return intercepted.sum();
+        }
+
+        long passed() {
+            return passed.sum();
+        }
+
+        List<long[]> hotspots(int limit) {
+            return hotspots.top(limit);
+        }
+    }
+}
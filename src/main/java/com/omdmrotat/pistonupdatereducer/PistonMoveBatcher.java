@@ -0,0 +1,287 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Collects the block writes of accepted piston moves during a tick and applies them together at the end of the tick.
+ * Writes are grouped by chunk and chunk section, repeated writes to the same block are merged (last write wins),
+ * and each chunk is checked for being loaded and fetched only once per flush.
+ * <p>
+ * Piston block updates (the only writes that apply physics) are applied after all moved blocks of their chunk.
+ * <p>
+ * With drop aggregation enabled, drops are taken at flush time from the block a breaking write actually overwrites,
+ * so moves queued in the same tick can't collect the same block twice and skipped chunks drop nothing.
+ */
+final class PistonMoveBatcher {
+
+    private static final int SECTION_BLOCKS = 16 * 16 * 16;
+
+    private final RateLimitedLogger warnings;
+    private final DropAggregator drops; // null when drop aggregation is disabled
+    private final Map<UUID, WorldBatch> worlds = new HashMap<>();
+    // Chunk batches are reused across ticks so a steady farm doesn't allocate new ones every tick
+    private final ArrayDeque<ChunkBatch> chunkPool = new ArrayDeque<>();
+
+    /**
+     * @param drops Takes the drops of blocks broken by queued writes, or null.
+     */
+    PistonMoveBatcher(RateLimitedLogger warnings, DropAggregator drops) {
+        this.warnings = warnings;
+        this.drops = drops;
+    }
+
+    /**
+     * Queues a write without physics. Replaces any earlier write queued for the same block this tick.
+     *
+     * @param breaks True if the write breaks whatever is there (a destination the move doesn't vacate).
+     *               Only the first write queued for a block in a tick decides this, as only it sees the block
+     *               that is in the world at flush time.
+     */
+    void queueBlock(World world, int x, int y, int z, BlockData data, boolean breaks) {
+        chunkBatch(world, x >> 4, z >> 4).putBlock(x, y, z, data, breaks);
+    }
+
+    /**
+     * Queues a piston block update. These are applied with physics, after the moved blocks of the chunk.
+     */
+    void queuePistonUpdate(World world, int x, int y, int z, BlockData data) {
+        chunkBatch(world, x >> 4, z >> 4).addPistonUpdate(x, y, z, data);
+    }
+
+    /**
+     * @return true if a block write is already queued for this position in the current tick.
+     */
+    boolean hasPendingWrite(World world, int x, int y, int z) {
+        WorldBatch worldBatch = worlds.get(world.getUID());
+        if (worldBatch == null || worldBatch.world == null) {
+            return false;
+        }
+        ChunkBatch chunk = worldBatch.chunks.get(BlockKeys.chunkKey(x >> 4, z >> 4));
+        return chunk != null && chunk.hasBlock(x, y, z);
+    }
+
+    /**
+     * Applies every queued write, one chunk at a time, and resets the batch for the next tick.
+     */
+    void flush() {
+        for (WorldBatch worldBatch : worlds.values()) {
+            if (worldBatch.world == null) {
+                continue; // Nothing queued for this world this tick
+            }
+            int skippedChunks = 0;
+            for (ChunkBatch chunk : worldBatch.pending) {
+                // One loaded check per chunk instead of one per block
+                if (worldBatch.world.isChunkLoaded(chunk.chunkX, chunk.chunkZ)) {
+                    try {
+                        chunk.apply(worldBatch.world.getChunkAt(chunk.chunkX, chunk.chunkZ), drops);
+                    } catch (Exception e) {
+                        warnings.logger().log(Level.SEVERE, "Error applying batched piston moves in chunk "
+                                + chunk.chunkX + ", " + chunk.chunkZ + " of " + worldBatch.world.getName(), e);
+                    }
+                } else {
+                    skippedChunks++;
+                }
+                chunk.reset();
+                chunkPool.push(chunk);
+            }
+            if (skippedChunks > 0) {
+                int skipped = skippedChunks;
+                String worldName = worldBatch.world.getName();
+                warnings.warning("batch-unloaded-chunk", () -> "Dropped batched piston moves for " + skipped + " unloaded chunk(s) in " + worldName);
+            }
+            worldBatch.chunks.clear();
+            worldBatch.pending.clear();
+            worldBatch.world = null; // Don't keep the world referenced between ticks
+        }
+    }
+
+    private ChunkBatch chunkBatch(World world, int chunkX, int chunkZ) {
+        WorldBatch worldBatch = worlds.get(world.getUID());
+        if (worldBatch == null) {
+            worldBatch = new WorldBatch();
+            worlds.put(world.getUID(), worldBatch);
+        }
+        worldBatch.world = world;
+
+        long key = BlockKeys.chunkKey(chunkX, chunkZ);
+        ChunkBatch chunk = worldBatch.chunks.get(key);
+        if (chunk == null) {
+            chunk = chunkPool.isEmpty() ? new ChunkBatch() : chunkPool.pop();
+            chunk.init(chunkX, chunkZ, world.getMinHeight() >> 4);
+            worldBatch.chunks.put(key, chunk);
+            worldBatch.pending.add(chunk);
+        }
+        return chunk;
+    }
+
+    private static final class WorldBatch {
+        private World world;
+        private final LongObjectMap<ChunkBatch> chunks = new LongObjectMap<>();
+        private final List<ChunkBatch> pending = new ArrayList<>(); // Insertion order, for flushing
+    }
+
+    /**
+     * Queued writes of one chunk, split into sections.
+     */
+    private static final class ChunkBatch {
+        private int chunkX;
+        private int chunkZ;
+        private int minSection;
+
+        private SectionBatch[] sections = new SectionBatch[0];
+        private int[] touchedSections = new int[8];
+        private int touchedCount;
+
+        // Piston updates in queue order
+        private int[] pistonX = new int[4];
+        private int[] pistonY = new int[4];
+        private int[] pistonZ = new int[4];
+        private BlockData[] pistonData = new BlockData[4];
+        private int pistonCount;
+
+        void init(int chunkX, int chunkZ, int minSection) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.minSection = minSection;
+        }
+
+        void putBlock(int x, int y, int z, BlockData data, boolean breaks) {
+            int index = (y >> 4) - minSection;
+            if (index >= sections.length) {
+                sections = Arrays.copyOf(sections, index + 1);
+            }
+            SectionBatch section = sections[index];
+            if (section == null) {
+                section = new SectionBatch();
+                sections[index] = section;
+            }
+            if (section.count == 0) {
+                if (touchedCount == touchedSections.length) {
+                    touchedSections = Arrays.copyOf(touchedSections, touchedCount * 2);
+                }
+                touchedSections[touchedCount++] = index;
+            }
+            section.put(SectionBatch.localIndex(x, y, z), data, breaks);
+        }
+
+        boolean hasBlock(int x, int y, int z) {
+            int index = (y >> 4) - minSection;
+            if (index < 0 || index >= sections.length || sections[index] == null) {
+                return false;
+            }
+            return sections[index].slotOf[SectionBatch.localIndex(x, y, z)] != 0;
+        }
+
+        void addPistonUpdate(int x, int y, int z, BlockData data) {
+            if (pistonCount == pistonData.length) {
+                int capacity = pistonCount * 2;
+                pistonX = Arrays.copyOf(pistonX, capacity);
+                pistonY = Arrays.copyOf(pistonY, capacity);
+                pistonZ = Arrays.copyOf(pistonZ, capacity);
+                pistonData = Arrays.copyOf(pistonData, capacity);
+            }
+            pistonX[pistonCount] = x;
+            pistonY[pistonCount] = y;
+            pistonZ[pistonCount] = z;
+            pistonData[pistonCount] = data;
+            pistonCount++;
+        }
+
+        void apply(Chunk chunk, DropAggregator drops) {
+            // Bottom-up section order (touched list is short, insertion sort is enough)
+            for (int i = 1; i < touchedCount; i++) {
+                int value = touchedSections[i];
+                int j = i - 1;
+                while (j >= 0 && touchedSections[j] > value) {
+                    touchedSections[j + 1] = touchedSections[j];
+                    j--;
+                }
+                touchedSections[j + 1] = value;
+            }
+
+            for (int i = 0; i < touchedCount; i++) {
+                SectionBatch section = sections[touchedSections[i]];
+                int baseY = (touchedSections[i] + minSection) << 4;
+                for (int w = 0; w < section.count; w++) {
+                    int local = section.local[w];
+                    Block block = chunk.getBlock(local & 15, baseY + (local >> 8), (local >> 4) & 15);
+                    if (drops != null && section.breaks[w]) {
+                        Material type = block.getType();
+                        if (!type.isAir() && type != Material.PISTON_HEAD && type != Material.MOVING_PISTON) {
+                            drops.collect(block); // Pushed into a breakable block (bamboo, cane...), keep its drops
+                        }
+                    }
+                    // NO physics update, same as the unbatched path
+                    block.setBlockData(section.data[w], false);
+                }
+            }
+
+            // Piston blocks last, with physics for the piston itself ONLY
+            for (int i = 0; i < pistonCount; i++) {
+                chunk.getBlock(pistonX[i] & 15, pistonY[i], pistonZ[i] & 15).setBlockData(pistonData[i], true);
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                sections[touchedSections[i]].reset();
+            }
+            touchedCount = 0;
+            Arrays.fill(pistonData, 0, pistonCount, null);
+            pistonCount = 0;
+        }
+    }
+
+    /**
+     * Queued writes of one 16x16x16 section. Merges writes to the same block through a position-to-slot table.
+     */
+    private static final class SectionBatch {
+        private final int[] slotOf = new int[SECTION_BLOCKS]; // slot + 1, 0 when the block has no write
+        private short[] local = new short[16];
+        private BlockData[] data = new BlockData[16];
+        private boolean[] breaks = new boolean[16];
+        private int count;
+
+        static int localIndex(int x, int y, int z) {
+            return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+        }
+
+        void put(int localIndex, BlockData blockData, boolean breaksBlock) {
+            int slot = slotOf[localIndex];
+            if (slot != 0) {
+                data[slot - 1] = blockData; // Duplicate write, keep the latest (and the first write's break flag)
+                return;
+            }
+            if (count == local.length) {
+                local = Arrays.copyOf(local, count * 2);
+                data = Arrays.copyOf(data, count * 2);
+                breaks = Arrays.copyOf(breaks, count * 2);
+            }
+            local[count] = (short) localIndex;
+            data[count] = blockData;
+            breaks[count] = breaksBlock;
+            slotOf[localIndex] = ++count;
+        }
+
+        void reset() {
+            for (int i = 0; i < count; i++) {
+                slotOf[local[i]] = 0;
+                data[i] = null;
+            }
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides the {@link PistonAction} for a piston event from the configured rules (first matching rule wins)
+ * and, if none match, the target-blocks list (REDUCE for target materials, THROTTLE for everything else).
+ * With structure moves enabled, unmatched pushes of enough blocks containing a structure material
+ * (slime, honey) are reduced as well.
+ * <p>
+ * Rules are compiled into flat tables: per world, one table for the rules without an area and one per area box,
+ * each mapping a material ordinal to the index of the first rule that matches it. Deciding an event is a map lookup
+ * for the world, a box test per area and a few array reads; moved blocks are only looked at if a rule asks for it.
+ * World tables are compiled the first time a world is seen, so worlds loaded after a reload are picked up too.
+ */
+final class PistonRules {
+
+    private static final Material[] MATERIALS = Material.values();
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private final boolean[] targets;
+    private final List<Rule> rules;
+    private final PistonAction[] actions;
+    private final boolean[] structureMaterials;
+    private final int minStructureBlocks; // Integer.MAX_VALUE when structure moves are disabled
+    private final Map<UUID, WorldRules> worlds = new ConcurrentHashMap<>();
+
+    /**
+     * @param targetMaterials Materials reduced when no rule matches (the target-blocks list).
+     * @param rules           Rules in config order.
+     */
+    PistonRules(Set<Material> targetMaterials, List<Rule> rules) {
+        this(targetMaterials, rules, Set.of(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param structureMaterials Moved blocks that make a push a structure move (structure-moves.materials).
+     * @param minStructureBlocks Fewest moved blocks for a structure move.
+     */
+    PistonRules(Set<Material> targetMaterials, List<Rule> rules, Set<Material> structureMaterials, int minStructureBlocks) {
+        this.targets = new boolean[MATERIALS.length];
+        for (Material material : targetMaterials) {
+            targets[material.ordinal()] = true;
+        }
+        this.structureMaterials = new boolean[MATERIALS.length];
+        for (Material material : structureMaterials) {
+            this.structureMaterials[material.ordinal()] = true;
+        }
+        this.minStructureBlocks = structureMaterials.isEmpty() ? Integer.MAX_VALUE : Math.max(1, minStructureBlocks);
+        this.rules = List.copyOf(rules);
+        this.actions = new PistonAction[this.rules.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = this.rules.get(i).action();
+        }
+    }
+
+    /**
+     * Decides what to do with a piston event.
+     *
+     * @param world       The piston's world.
+     * @param x           Piston x.
+     * @param y           Piston y.
+     * @param z           Piston z.
+     * @param trigger     The block type the event is judged by (block in front / pulled block / space retracted into).
+     * @param movedBlocks The blocks the piston moves, only read if a rule matches on any moved block
+     *                    or for a structure move check.
+     */
+    PistonAction decide(World world, int x, int y, int z, Material trigger, List<Block> movedBlocks) {
+        if (actions.length == 0) {
+            return defaultAction(trigger, movedBlocks); // No rules configured, plain target-blocks check
+        }
+        WorldRules compiled = worlds.get(world.getUID());
+        if (compiled == null) {
+            compiled = worlds.computeIfAbsent(world.getUID(), id -> compile(world.getName()));
+        }
+
+        int rule = compiled.global.match(trigger, movedBlocks);
+        for (int i = 0; i < compiled.areas.length; i++) {
+            if (compiled.boxes[i].contains(x, y, z)) {
+                rule = Math.min(rule, compiled.areas[i].match(trigger, movedBlocks));
+            }
+        }
+        return rule == NO_RULE ? defaultAction(trigger, movedBlocks) : actions[rule];
+    }
+
+    private PistonAction defaultAction(Material trigger, List<Block> movedBlocks) {
+        if (targets[trigger.ordinal()]) {
+            return PistonAction.REDUCE;
+        }
+        // Structure move: one pass over the moved blocks, only for pushes big enough to qualify
+        if (movedBlocks.size() >= minStructureBlocks) {
+            for (int i = 0; i < movedBlocks.size(); i++) {
+                if (structureMaterials[movedBlocks.get(i).getType().ordinal()]) {
+                    return PistonAction.REDUCE;
+                }
+            }
+        }
+        return PistonAction.THROTTLE;
+    }
+
+    /**
+     * @return true if a captured move is a structure move: enough blocks, at least one of them a structure material.
+     */
+    boolean isStructureMove(MoveBuffer buffer) {
+        if (buffer.size < minStructureBlocks) {
+            return false;
+        }
+        for (int i = 0; i < buffer.size; i++) {
+            if (structureMaterials[buffer.data[i].getMaterial().ordinal()]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int ruleCount() {
+        return actions.length;
+    }
+
+    private WorldRules compile(String worldName) {
+        Table global = new Table();
+        List<Box> boxes = new ArrayList<>();
+        List<Table> areas = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (!rule.worlds().isEmpty() && !rule.worlds().contains(worldName)) {
+                continue;
+            }
+            Table table = global;
+            if (rule.area() != null) {
+                // Rules sharing the same box share a table
+                int index = boxes.indexOf(rule.area());
+                if (index < 0) {
+                    boxes.add(rule.area());
+                    areas.add(new Table());
+                    index = boxes.size() - 1;
+                }
+                table = areas.get(index);
+            }
+            table.add(i, rule);
+        }
+        return new WorldRules(global, boxes.toArray(new Box[0]), areas.toArray(new Table[0]));
+    }
+
+    /**
+     * One configured rule. Empty worlds / materials match everything, a null area matches the whole world.
+     *
+     * @param anyMovedBlock If true the materials are also matched against every block the piston moves,
+     *                      not just the block the event is judged by.
+     */
+    record Rule(Set<String> worlds, Box area, Set<Material> materials, boolean anyMovedBlock, PistonAction action) {
+    }
+
+    /**
+     * Inclusive block-coordinate box.
+     */
+    record Box(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+
+        static Box of(int x1, int y1, int z1, int x2, int y2, int z2) {
+            return new Box(Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2), Math.max(x1, x2), Math.max(y1, y2), Math.max(z1, z2));
+        }
+
+        boolean contains(int x, int y, int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+        }
+    }
+
+    private record WorldRules(Table global, Box[] boxes, Table[] areas) {
+    }
+
+    /**
+     * First matching rule index per material ordinal, once for the trigger block and once for any moved block.
+     */
+    private static final class Table {
+        private final int[] trigger = newIndex();
+        private int[] moved; // null unless a rule in this table matches on moved blocks
+
+        private static int[] newIndex() {
+            int[] index = new int[MATERIALS.length];
+            Arrays.fill(index, NO_RULE);
+            return index;
+        }
+
+        void add(int ruleIndex, Rule rule) {
+            fill(trigger, ruleIndex, rule.materials());
+            if (rule.anyMovedBlock()) {
+                if (moved == null) {
+                    moved = newIndex();
+                }
+                fill(moved, ruleIndex, rule.materials());
+            }
+        }
+
+        private static void fill(int[] index, int ruleIndex, Set<Material> materials) {
+            // Rules are added in config order, so an entry that is already set belongs to an earlier rule
+            if (materials.isEmpty()) {
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = Math.min(index[i], ruleIndex);
+                }
+            } else {
+                for (Material material : materials) {
+                    index[material.ordinal()] = Math.min(index[material.ordinal()], ruleIndex);
+                }
+            }
+        }
+
+        int match(Material triggerType, List<Block> movedBlocks) {
+            int rule = trigger[triggerType.ordinal()];
+            int[] movedIndex = moved;
+            if (movedIndex != null) {
+                for (int i = 0, size = movedBlocks.size(); i < size; i++) {
+                    rule = Math.min(rule, movedIndex[movedBlocks.get(i).getType().ordinal()]);
+                }
+            }
+            return rule;
+        }
+    }
+}
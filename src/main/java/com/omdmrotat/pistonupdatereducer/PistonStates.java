@@ -0,0 +1,63 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Piston;
+import org.bukkit.block.data.type.PistonHead;
+
+/**
+ * Prebuilt piston and piston head BlockData for every facing, normal/sticky and extended/retracted combination.
+ * Built once on enable and never modified afterwards, so the instances can be handed to setBlockData
+ * (which copies the state) any number of times instead of creating and mutating new BlockData per event.
+ */
+final class PistonStates {
+
+    private static final BlockFace[] FACES = {BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN};
+
+    // Indexed by [sticky ? 1 : 0][BlockFace ordinal] (non-cartesian faces stay null)
+    private final BlockData[][] heads = new BlockData[2][BlockFace.values().length];
+    // Indexed by [sticky ? 1 : 0][BlockFace ordinal][extended ? 1 : 0]
+    private final BlockData[][][] pistons = new BlockData[2][BlockFace.values().length][2];
+    private final BlockData air;
+
+    PistonStates() {
+        air = Bukkit.createBlockData(Material.AIR);
+        for (int sticky = 0; sticky < 2; sticky++) {
+            Material pistonMaterial = sticky == 1 ? Material.STICKY_PISTON : Material.PISTON;
+            for (BlockFace face : FACES) {
+                PistonHead head = (PistonHead) Bukkit.createBlockData(Material.PISTON_HEAD);
+                head.setFacing(face);
+                head.setType(sticky == 1 ? PistonHead.Type.STICKY : PistonHead.Type.NORMAL);
+                head.setShort(false);
+                heads[sticky][face.ordinal()] = head;
+
+                for (int extended = 0; extended < 2; extended++) {
+                    Piston piston = (Piston) Bukkit.createBlockData(pistonMaterial);
+                    piston.setFacing(face);
+                    piston.setExtended(extended == 1);
+                    pistons[sticky][face.ordinal()][extended] = piston;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The (shared, do not modify) full-length head for a piston of this material facing this way.
+     */
+    BlockData head(Material pistonMaterial, BlockFace facing) {
+        return heads[pistonMaterial == Material.STICKY_PISTON ? 1 : 0][facing.ordinal()];
+    }
+
+    /**
+     * @return The (shared, do not modify) piston BlockData for this material, facing and extended state.
+     */
+    BlockData piston(Material pistonMaterial, BlockFace facing, boolean extended) {
+        return pistons[pistonMaterial == Material.STICKY_PISTON ? 1 : 0][facing.ordinal()][extended ? 1 : 0];
+    }
+
+    BlockData air() {
+        return air;
+    }
+}
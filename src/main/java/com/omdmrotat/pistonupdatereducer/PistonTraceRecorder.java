@@ -0,0 +1,310 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends every piston event the handler decides on to a compact binary trace file,
+ * so production piston load can be replayed offline (see TraceReplay in the benchmarks).
+ * <p>
+ * Events are encoded into a direct buffer under a short lock; full buffers are appended to the file by a
+ * single writer thread, so file IO stays off the tick threads. If the disk can't keep up and no buffer is free,
+ * events are dropped (and counted) rather than stalling the server.
+ * <p>
+ * Format (big endian): a header {@code int magic, short version, long start epoch millis}, then records,
+ * each starting with a tag byte:
+ * <ul>
+ *     <li>WORLD / MATERIAL: {@code short id, short length, UTF-8 name}, written before the id is first used</li>
+ *     <li>EVENT: {@code long nanos since start, short world, long packed piston position, byte direction, byte flags,
+ *     byte action, byte outcome, short trigger material, byte moved count}, then per moved block
+ *     {@code short material, byte dx, byte dy, byte dz} relative to the piston. The action is what the rules
+ *     decided, the outcome what was actually done (see {@link PistonAction})</li>
+ * </ul>
+ */
+final class PistonTraceRecorder {
+
+    static final int MAGIC = 0x50555254; // "PURT"
+    static final short VERSION = 2; // 2 added the outcome byte
+
+    static final byte TAG_WORLD = 1;
+    static final byte TAG_MATERIAL = 2;
+    static final byte TAG_EVENT = 3;
+
+    static final int FLAG_EXTENDING = 1;
+    static final int FLAG_STICKY = 2;
+
+    // Directions are stored as their index in this array
+    static final BlockFace[] FACES = {
+            BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN
+    };
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFERS = 4;
+    // Fixed part of an event record and the size of each moved block
+    private static final int EVENT_BYTES = 1 + 8 + 2 + 8 + 1 + 1 + 1 + 1 + 2 + 1;
+    private static final int MOVED_BYTES = 2 + 1 + 1 + 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Logger logger;
+    private final long maxBytes;
+    private final long startNanos = System.nanoTime();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PistonUpdateReducer-trace");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(BUFFERS);
+
+    // Guarded by this
+    private ByteBuffer buffer;
+    private final Map<UUID, Integer> worldIds = new HashMap<>();
+    private final short[] materialIds = new short[Material.values().length];
+    private int nextMaterialId = 1; // 0 marks "not defined yet" in materialIds
+    private long bytes;
+    private long events;
+    private long dropped;
+    private boolean full;
+    private boolean closed;
+
+    private volatile boolean failed;
+
+    /**
+     * Creates the trace file (it must not exist yet) and writes the header.
+     *
+     * @param maxBytes Recording stops once the file would grow past this size.
+     */
+    PistonTraceRecorder(File file, long maxBytes, Logger logger) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.logger = logger;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < BUFFERS; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        buffer = freeBuffers.poll();
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis());
+        bytes = buffer.position();
+    }
+
+    /**
+     * Appends one decided piston event.
+     *
+     * @param action  What the rules decided.
+     * @param outcome What was actually done.
+     * @param trigger The block type the event was judged by.
+     */
+    void record(Block piston, BlockFace direction, boolean extending, PistonAction action, PistonAction outcome, Material trigger, List<Block> movedBlocks) {
+        long nanos = System.nanoTime() - startNanos;
+        // Read the world before taking the lock
+        World world = piston.getWorld();
+        int x = piston.getX();
+        int y = piston.getY();
+        int z = piston.getZ();
+        boolean sticky = piston.getType() == Material.STICKY_PISTON;
+        int moved = Math.min(movedBlocks.size(), 255);
+
+        synchronized (this) {
+            if (closed || full || failed) {
+                return;
+            }
+            if (bytes + EVENT_BYTES + (long) moved * MOVED_BYTES > maxBytes) {
+                full = true;
+                logger.warning("Piston trace " + file.getName() + " reached its size limit, recording stopped.");
+                return;
+            }
+            // Definitions first, they may need buffer space themselves
+            int worldId = worldId(world);
+            int triggerId = materialId(trigger);
+            if (worldId < 0 || triggerId < 0) {
+                return;
+            }
+            for (int i = 0; i < moved; i++) {
+                if (materialId(movedBlocks.get(i).getType()) < 0) {
+                    return;
+                }
+            }
+            if (!ensure(EVENT_BYTES + moved * MOVED_BYTES)) {
+                return;
+            }
+            int start = buffer.position();
+            buffer.put(TAG_EVENT)
+                    .putLong(nanos)
+                    .putShort((short) worldId)
+                    .putLong(BlockKeys.blockKey(x, y, z))
+                    .put((byte) faceIndex(direction))
+                    .put((byte) ((extending ? FLAG_EXTENDING : 0) | (sticky ? FLAG_STICKY : 0)))
+                    .put((byte) action.ordinal())
+                    .put((byte) outcome.ordinal())
+                    .putShort((short) triggerId)
+                    .put((byte) moved);
+            for (int i = 0; i < moved; i++) {
+                Block block = movedBlocks.get(i);
+                buffer.putShort(materialIds[block.getType().ordinal()])
+                        .put((byte) (block.getX() - x))
+                        .put((byte) (block.getY() - y))
+                        .put((byte) (block.getZ() - z));
+            }
+            bytes += buffer.position() - start;
+            events++;
+        }
+    }
+
+    // Caller holds the lock. Returns -1 if the definition couldn't be written (no free buffer).
+    private int worldId(World world) {
+        Integer id = worldIds.get(world.getUID());
+        if (id == null) {
+            id = worldIds.size();
+            if (!writeDefinition(TAG_WORLD, id, world.getName())) {
+                return -1;
+            }
+            worldIds.put(world.getUID(), id);
+        }
+        return id;
+    }
+
+    // Caller holds the lock. Returns -1 if the definition couldn't be written (no free buffer).
+    private int materialId(Material material) {
+        int id = materialIds[material.ordinal()];
+        if (id == 0) {
+            id = nextMaterialId;
+            if (!writeDefinition(TAG_MATERIAL, id, material.name())) {
+                return -1;
+            }
+            nextMaterialId++;
+            materialIds[material.ordinal()] = (short) id;
+        }
+        return id;
+    }
+
+    // Caller holds the lock. Definitions are tiny and not counted against the size limit.
+    private boolean writeDefinition(byte tag, int id, String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if (!ensure(1 + 2 + 2 + encoded.length)) {
+            return false;
+        }
+        buffer.put(tag).putShort((short) id).putShort((short) encoded.length).put(encoded);
+        bytes += 1 + 2 + 2 + encoded.length;
+        return true;
+    }
+
+    /**
+     * Makes room for a record, handing the current buffer to the writer thread if it is too full.
+     * Caller holds the lock.
+     *
+     * @return false if no buffer was free and the record has to be dropped.
+     */
+    private boolean ensure(int size) {
+        if (buffer == null || buffer.remaining() < size) {
+            if (buffer != null) {
+                submit(buffer);
+                buffer = null;
+            }
+            buffer = freeBuffers.poll();
+            if (buffer == null) {
+                dropped++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Caller holds the lock
+    private void submit(ByteBuffer full) {
+        full.flip();
+        writer.execute(() -> {
+            try {
+                while (full.hasRemaining()) {
+                    channel.write(full);
+                }
+            } catch (IOException e) {
+                if (!failed) {
+                    failed = true;
+                    logger.log(Level.WARNING, "Could not write piston trace " + file + ", recording stopped.", e);
+                }
+            }
+            full.clear();
+            freeBuffers.offer(full);
+        });
+    }
+
+    private static int faceIndex(BlockFace face) {
+        for (int i = 0; i < FACES.length; i++) {
+            if (FACES[i] == face) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes what is still buffered and closes the file. Events recorded afterwards are ignored.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (buffer != null && buffer.position() > 0) {
+                submit(buffer);
+            }
+            buffer = null;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("Timed out writing the rest of piston trace " + file.getName() + ".");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close piston trace " + file, e);
+        }
+        logger.info("Piston trace " + file.getName() + " closed: " + events() + " events, " + bytes() / 1024 + " KB.");
+    }
+
+    File file() {
+        return file;
+    }
+
+    synchronized long events() {
+        return events;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+}
@@ -1,42 +1,46 @@
 package com.omdmrotat.pistonupdatereducer;
 
 // Specific imports instead of org.bukkit.*
-import org.bukkit.Bukkit;
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
 import org.bukkit.ChatColor; // Import ChatColor for messages
-import org.bukkit.Location;
 import org.bukkit.Material;
-// Keep other specific imports
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
-import org.bukkit.block.data.BlockData;
-// Removed org.bukkit.block.data.Directional as it's not directly used after PistonHead import
-import org.bukkit.block.data.type.Piston; // Import Piston data type
-import org.bukkit.block.data.type.PistonHead; // Import PistonHead data type
 import org.bukkit.command.Command; // Import Command
 import org.bukkit.command.CommandExecutor; // Import CommandExecutor
 import org.bukkit.command.CommandSender; // Import CommandSender
 import org.bukkit.command.PluginCommand; // Import PluginCommand
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.EventPriority; // Import EventPriority
-import org.bukkit.event.Listener;
-import org.bukkit.event.block.BlockPistonEvent;
-import org.bukkit.event.block.BlockPistonExtendEvent;
-import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 // No BukkitRunnable needed anymore
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set; // Use Set interface for TARGET_MATERIALS type
 import java.util.EnumSet; // Use EnumSet for initialization
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 // No Collectors needed anymore
 
-public final class PistonUpdateReducer extends JavaPlugin implements Listener, CommandExecutor { // Implement CommandExecutor
+public final class PistonUpdateReducer extends JavaPlugin implements CommandExecutor { // Implement CommandExecutor
 
-    // Set of materials loaded from config - Initialize as empty
-    private Set<Material> targetMaterials = EnumSet.noneOf(Material.class);
+    // Listener doing the actual piston handling, created on enable
+    private PistonHandler pistonHandler;
+    // Rate-limited hot-path warnings, shared by the handler and batcher
+    private RateLimitedLogger warnings;
+    // Periodic metrics dump - null when disabled
+    private ScheduledTask metricsDumpTask = null;
+
+    // Each kind of hot-path warning is logged at most once per this many seconds
+    private static final long WARNING_INTERVAL_SECONDS = 30;
 
     // Define default materials
     private static final Set<Material> DEFAULT_TARGET_MATERIALS = EnumSet.of(
@@ -51,11 +55,15 @@ public final class PistonUpdateReducer extends JavaPlugin implements Listener, C
         // Plugin startup logic
         getLogger().info("PistonUpdateReducer enabling...");
 
+        warnings = new RateLimitedLogger(getLogger(), WARNING_INTERVAL_SECONDS);
+        pistonHandler = new PistonHandler(this, new PistonStates(), warnings);
+
         // Load configuration (generates default if needed)
         loadConfiguration();
 
         // Register events
-        getServer().getPluginManager().registerEvents(this, this);
+        getServer().getPluginManager().registerEvents(pistonHandler, this);
+        getServer().getPluginManager().registerEvents(new MovePlanListener(pistonHandler), this);
 
         // Register command
         PluginCommand command = getCommand("pistonupdatereducer");
@@ -72,15 +80,27 @@ public final class PistonUpdateReducer extends JavaPlugin implements Listener, C
     @Override
     public void onDisable() {
         // Plugin shutdown logic
-        getLogger().info("PistonUpdateReducer disabled.");
-        // Clear the set on disable (optional, good practice)
-        if (targetMaterials != null) {
-            targetMaterials.clear();
+        if (metricsDumpTask != null) {
+            metricsDumpTask.cancel();
+            metricsDumpTask = null;
         }
+        // Apply anything still queued so no half-done moves are lost
+        if (pistonHandler != null) {
+            ReducerSettings last = pistonHandler.getSettings();
+            pistonHandler.applySettings(ReducerSettings.disabled());
+            // Spawn drops still waiting for their window, the scheduled flushes won't run anymore
+            if (last.dropAggregator() != null) {
+                last.dropAggregator().flushAll();
+            }
+            pistonHandler = null;
+        }
+        getLogger().info("PistonUpdateReducer disabled.");
     }
 
     /**
      * Loads or reloads the configuration from config.yml.
+     * Everything is built into a new {@link ReducerSettings} snapshot first and handed to the piston handler in one go,
+     * so events running on other (region) threads during a reload never see a half-loaded config.
      */
     private void loadConfiguration() {
         // Save the default config.yml from the JAR if it doesn't exist
@@ -88,8 +108,8 @@ public final class PistonUpdateReducer extends JavaPlugin implements Listener, C
         // Reload the configuration from disk
         reloadConfig();
 
-        // Clear the existing set before loading new values
-        targetMaterials.clear();
+        // Build a new set, compiled into the snapshot once filled
+        Set<Material> targetMaterials = EnumSet.noneOf(Material.class);
 
         // Get the list of strings from the config
         List<String> materialNames = getConfig().getStringList("target-blocks");
@@ -117,283 +137,606 @@ public final class PistonUpdateReducer extends JavaPlugin implements Listener, C
             }
         }
         getLogger().info("Loaded " + loadedCount + " target materials."); // Log total loaded count
-    }
 
-    // --- Command Handling ---
-
-    @Override
-    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        // Check base permission first
-        if (!sender.hasPermission("pistonupdatereducer.command.base")) {
-            sender.sendMessage(ChatColor.RED + "You do not have permission to use this command.");
-            return true;
+        String action = getConfig().getString("chunk-limiter.over-budget-action", "CANCEL");
+        boolean deferOverBudget;
+        if (action.equalsIgnoreCase("DEFER")) {
+            deferOverBudget = true;
+        } else {
+            if (!action.equalsIgnoreCase("CANCEL")) {
+                getLogger().warning("Invalid chunk-limiter.over-budget-action '" + action + "' in config.yml. Using CANCEL.");
+            }
+            deferOverBudget = false;
         }
+        int deferTicks = Math.max(1, getConfig().getInt("chunk-limiter.defer-ticks", 5));
 
-        if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
-            // Check reload permission
-            if (!sender.hasPermission("pistonupdatereducer.command.reload")) {
-                sender.sendMessage(ChatColor.RED + "You do not have permission to reload the configuration.");
-                return true;
+        AllocationCounter allocationCounter = null;
+        if (getConfig().getBoolean("debug.track-allocations", false)) {
+            if (AllocationCounter.isSupported()) {
+                allocationCounter = new AllocationCounter();
+                getLogger().info("Allocation tracking enabled for handled piston events (/pur alloc).");
+            } else {
+                getLogger().warning("debug.track-allocations is enabled but this JVM can't report per-thread allocations.");
             }
+        }
 
-            // Reload the configuration
-            loadConfiguration();
-            sender.sendMessage(ChatColor.GREEN + "PistonUpdateReducer configuration reloaded!");
-            return true;
+        DropAggregator dropAggregator = loadDropAggregator();
+        PistonMoveBatcher moveBatcher = loadMoveBatcher(dropAggregator);
+        String neighborUpdates = getConfig().getString("neighbor-updates", "NONE");
+        boolean selectiveUpdates = neighborUpdates.equalsIgnoreCase("SELECTIVE");
+        if (!selectiveUpdates && !neighborUpdates.equalsIgnoreCase("NONE")) {
+            getLogger().warning("Invalid neighbor-updates '" + neighborUpdates + "' in config.yml. Using NONE.");
+        }
+        if (selectiveUpdates) {
+            if (moveBatcher != null) {
+                getLogger().warning("neighbor-updates: SELECTIVE does not apply to batched moves, they are always written without physics.");
+            } else {
+                getLogger().info("Selective neighbor updates enabled: observers, comparators and pistons next to moved blocks are updated.");
+            }
         }
 
-        // Show basic usage if command is incorrect
-        sender.sendMessage(ChatColor.YELLOW + "Usage: /" + label + " reload");
-        return true;
+        // Swapping in the new snapshot also applies whatever the old batcher still had queued
+        pistonHandler.applySettings(new ReducerSettings(
+                loadRules(targetMaterials),
+                loadChunkLimiter(deferOverBudget, deferTicks),
+                deferOverBudget,
+                deferTicks,
+                moveBatcher,
+                loadMetrics(),
+                loadClockDetector(),
+                allocationCounter,
+                dropAggregator,
+                selectiveUpdates,
+                loadMovePlans(moveBatcher != null),
+                loadTraceRecorder(),
+                loadTiers(),
+                loadBlockWriter(moveBatcher != null)));
     }
 
+    /**
+     * Compiles the 'rules' list, with the target materials as the fallback for events no rule matches.
+     * Invalid rules are skipped with a warning.
+     */
+    private PistonRules loadRules(Set<Material> targetMaterials) {
+        List<PistonRules.Rule> rules = new ArrayList<>();
+        List<Map<?, ?>> entries = getConfig().getMapList("rules");
+        for (int i = 0; i < entries.size(); i++) {
+            PistonRules.Rule rule = parseRule(entries.get(i), i + 1);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        if (!rules.isEmpty()) {
+            getLogger().info("Loaded " + rules.size() + " piston rules.");
+        }
+        return loadStructureMoves(targetMaterials, rules);
+    }
 
-    // --- Piston Event Handlers ---
-    // Use a lower priority to let other plugins potentially modify/cancel first if needed
-    // This synchronous handler should be executed by Folia on the correct region's thread.
-    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
-    public void onPistonExtend(BlockPistonExtendEvent event) {
-        // Check if the block being pushed is one of the target types
-        // Cache relative block for slight optimization
-        Block blockInFront = event.getBlock().getRelative(event.getDirection());
-        // Use the loaded targetMaterials set
-        if (targetMaterials.contains(blockInFront.getType())) {
-            // If it matches, handle it with our custom logic
-            handlePistonEvent(event, event.getBlocks(), event.getDirection(), true);
-        }
-        // If it doesn't match, do nothing and let vanilla handle it.
+    /**
+     * Adds structure moves from the 'structure-moves' section to the compiled rules.
+     */
+    private PistonRules loadStructureMoves(Set<Material> targetMaterials, List<PistonRules.Rule> rules) {
+        if (!getConfig().getBoolean("structure-moves.enabled", false)) {
+            return new PistonRules(targetMaterials, rules);
+        }
+        Set<Material> structureMaterials = EnumSet.noneOf(Material.class);
+        for (String name : getConfig().getStringList("structure-moves.materials")) {
+            Material material = Material.matchMaterial(name);
+            if (material != null && material.isBlock()) {
+                structureMaterials.add(material);
+            } else {
+                getLogger().warning("Invalid block material in structure-moves.materials: " + name);
+            }
+        }
+        if (structureMaterials.isEmpty()) {
+            getLogger().warning("structure-moves.materials has no valid blocks. Structure moves disabled.");
+            return new PistonRules(targetMaterials, rules);
+        }
+        int minBlocks = Math.max(1, getConfig().getInt("structure-moves.min-blocks", 3));
+        getLogger().info("Structure moves enabled: pushes of " + minBlocks + "+ blocks containing " + structureMaterials + " are reduced.");
+        return new PistonRules(targetMaterials, rules, structureMaterials, minBlocks);
     }
 
-    // This synchronous handler should be executed by Folia on the correct region's thread.
-    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
-    public void onPistonRetract(BlockPistonRetractEvent event) {
-        // Check if any block being pulled is one of the target types.
-        List<Block> pulledBlocks = event.getBlocks();
-        boolean triggerCustomLogic = false; // Renamed for clarity
-        if (!pulledBlocks.isEmpty()) {
-            // Check the block directly attached to the piston head
-            Block directlyPulledBlock = pulledBlocks.get(pulledBlocks.size() - 1);
-            // Use the loaded targetMaterials set
-            if (targetMaterials.contains(directlyPulledBlock.getType())) {
-                triggerCustomLogic = true;
+    /**
+     * @return The parsed rule, or null (after logging why) if the entry is invalid.
+     */
+    private PistonRules.Rule parseRule(Map<?, ?> entry, int number) {
+        Object actionName = entry.get("action");
+        PistonAction action = null;
+        if (actionName != null) {
+            for (PistonAction candidate : PistonAction.values()) {
+                if (candidate.name().equalsIgnoreCase(actionName.toString().trim())) {
+                    action = candidate;
+                }
             }
-        } else {
-            // Optimization: Only check blockRetractingInto if no blocks are being pulled
-            // If no blocks are pulled (just the head retracting), check if the space it retracts into is AIR (or other target material)
-            Block blockRetractingInto = event.getBlock().getRelative(event.getDirection());
-            // Use the loaded targetMaterials set
-            if (targetMaterials.contains(blockRetractingInto.getType())) {
-                triggerCustomLogic = true; // Treat retracting into target material as a targeted action
+        }
+        if (action == null) {
+            getLogger().warning("Rule #" + number + " in config.yml has no valid action (VANILLA, THROTTLE, REDUCE, CANCEL). Skipping.");
+            return null;
+        }
+
+        Set<String> worlds = new HashSet<>();
+        if (entry.get("worlds") instanceof List<?> worldNames) {
+            for (Object name : worldNames) {
+                worlds.add(String.valueOf(name));
             }
         }
 
+        Set<Material> materials = EnumSet.noneOf(Material.class);
+        if (entry.get("materials") instanceof List<?> materialNames) {
+            for (Object name : materialNames) {
+                Material mat = Material.matchMaterial(String.valueOf(name).trim());
+                if (mat != null) {
+                    materials.add(mat);
+                } else {
+                    getLogger().warning("Invalid material name '" + name + "' in rule #" + number + " in config.yml. Skipping it.");
+                }
+            }
+            if (materials.isEmpty()) {
+                // Every listed material was invalid, don't turn the rule into a match-all
+                getLogger().warning("Rule #" + number + " in config.yml has no valid materials. Skipping.");
+                return null;
+            }
+        }
+
+        PistonRules.Box area = null;
+        if (entry.get("area") instanceof Map<?, ?> box) {
+            // Without a y the box covers the full world height
+            int[] min = parseCorner(box.get("min"), Integer.MIN_VALUE);
+            int[] max = parseCorner(box.get("max"), Integer.MAX_VALUE);
+            if (min == null || max == null) {
+                getLogger().warning("Rule #" + number + " in config.yml has an invalid area, expected min/max as [x, y, z] or [x, z]. Skipping.");
+                return null;
+            }
+            area = PistonRules.Box.of(min[0], min[1], min[2], max[0], max[1], max[2]);
+        }
+
+        Object match = entry.get("match");
+        boolean anyMovedBlock = false;
+        if (match != null) {
+            if (match.toString().equalsIgnoreCase("ANY")) {
+                anyMovedBlock = true;
+            } else if (!match.toString().equalsIgnoreCase("TRIGGER")) {
+                getLogger().warning("Invalid match '" + match + "' in rule #" + number + " in config.yml. Using TRIGGER.");
+            }
+        }
+        return new PistonRules.Rule(worlds, area, materials, anyMovedBlock, action);
+    }
 
-        // If a target block condition was met, handle it with our custom logic.
-        if (triggerCustomLogic) {
-            handlePistonEvent(event, pulledBlocks, event.getDirection(), false);
+    /**
+     * Parses an area corner: [x, y, z], or [x, z] with the given y.
+     *
+     * @return {x, y, z}, or null if invalid.
+     */
+    private static int[] parseCorner(Object value, int defaultY) {
+        if (!(value instanceof List<?> coords) || (coords.size() != 2 && coords.size() != 3)) {
+            return null;
         }
-        // If no target block is being pulled and not retracting into AIR, do nothing and let vanilla handle it.
+        int[] corner = {0, defaultY, 0};
+        for (int i = 0; i < coords.size(); i++) {
+            if (!(coords.get(i) instanceof Number number)) {
+                return null;
+            }
+            corner[coords.size() == 3 ? i : i * 2] = number.intValue();
+        }
+        return corner;
     }
 
     /**
-     * Handles the common logic for both piston extend and retract events SYNCHRONOUSLY
-     * ONLY IF the target block condition was met by the caller.
+     * Loads the per-chunk piston budget from the 'chunk-limiter' section.
+     * A fresh limiter is created on every reload, so throttling statistics start over.
      *
-     * @param event      The original BlockPistonEvent.
-     * @param movedBlocks The list of blocks that would be moved by the piston.
-     * @param direction  The direction the piston is facing/moving.
-     * @param isExtending True if the piston is extending, false if retracting.
+     * @return The limiter, or null if it is disabled.
      */
-    private void handlePistonEvent(BlockPistonEvent event, List<Block> movedBlocks, BlockFace direction, boolean isExtending) {
-        Block pistonBlock = event.getBlock();
-        Location pistonLoc = pistonBlock.getLocation();
-        Material pistonMaterial = pistonBlock.getType(); // Get piston type (normal/sticky)
+    private ChunkPistonLimiter loadChunkLimiter(boolean deferOverBudget, int deferTicks) {
+        if (!getConfig().getBoolean("chunk-limiter.enabled", false)) {
+            return null;
+        }
+
+        double eventsPerSecond = getConfig().getDouble("chunk-limiter.events-per-second", 40);
+        double burst = getConfig().getDouble("chunk-limiter.burst", eventsPerSecond * 2);
+        double worldEventsPerSecond = getConfig().getDouble("chunk-limiter.world-events-per-second", 0);
+        double worldBurst = getConfig().getDouble("chunk-limiter.world-burst", worldEventsPerSecond * 2);
+        long idleSeconds = getConfig().getLong("chunk-limiter.idle-seconds", 60);
 
-        // Basic check: Is the piston block's chunk loaded? (Should be loaded if event fired)
-        if (!isLocationLoaded(pistonLoc)) {
-            getLogger().warning("Piston event triggered for unloaded piston block at: " + pistonLoc);
-            return; // Don't process if the piston itself isn't loaded
+        if (eventsPerSecond <= 0) {
+            getLogger().warning("chunk-limiter.events-per-second must be positive. Chunk limiter disabled.");
+            return null;
         }
 
-        // --- The Core Logic: Cancel Sync, Move Sync ---
+        getLogger().info("Chunk limiter enabled: " + eventsPerSecond + " piston events/s per chunk (burst " + burst + ")"
+                + (worldEventsPerSecond > 0 ? ", " + worldEventsPerSecond + " events/s per world" : "")
+                + ", over budget: " + (deferOverBudget ? "DEFER " + deferTicks + " ticks" : "CANCEL") + ".");
+        return new ChunkPistonLimiter(eventsPerSecond, burst, worldEventsPerSecond, worldBurst, idleSeconds);
+    }
 
-        // 1. Cancel the original event SYNCHRONOUSLY to prevent default behavior
-        event.setCancelled(true);
-        // getLogger().info("Cancelled piston event for target block at " + pistonLoc); // Debug log
+    /**
+     * Enables or disables the end-of-tick move queue from the 'batching' section.
+     * Anything the previous batcher still has queued is applied when the new snapshot is swapped in.
+     *
+     * @return The batcher, or null if batching is disabled.
+     */
+    private PistonMoveBatcher loadMoveBatcher(DropAggregator drops) {
+        if (!getConfig().getBoolean("batching.enabled", false)) {
+            return null;
+        }
+        if (isFolia()) {
+            // Folia has no global tick end to flush on, the queue would never be applied
+            getLogger().warning("batching.enabled is not supported on Folia. Piston moves will be applied immediately.");
+            return null;
+        }
+        getLogger().info("Batched piston moves enabled: moves are applied per chunk at the end of each tick.");
+        return new PistonMoveBatcher(warnings, drops);
+    }
 
-        // Cache piston head location - calculated once
-        Location pistonHeadLoc = pistonLoc.clone().add(direction.getModX(), direction.getModY(), direction.getModZ());
+    /**
+     * Enables clock detection / frequency division from the 'clock-detection' section.
+     * Tracked pistons start over on every reload.
+     *
+     * @return The detector, or null if clock detection is disabled.
+     */
+    private PistonClockDetector loadClockDetector() {
+        if (!getConfig().getBoolean("clock-detection.enabled", false)) {
+            return null;
+        }
+        double windowSeconds = getConfig().getDouble("clock-detection.window-seconds", 5);
+        double threshold = getConfig().getDouble("clock-detection.threshold-per-second", 2);
+        int divider = getConfig().getInt("clock-detection.divider", 4);
+        int maxTracked = getConfig().getInt("clock-detection.max-tracked-pistons", 65536);
+        long idleSeconds = getConfig().getLong("clock-detection.idle-seconds", 60);
+        if (threshold <= 0 || divider < 2) {
+            getLogger().warning("clock-detection needs a positive threshold-per-second and a divider of at least 2. Clock detection disabled.");
+            return null;
+        }
+        getLogger().info("Clock detection enabled: pistons extending " + threshold + "+ times/s only run every " + divider + " cycles.");
+        return new PistonClockDetector(windowSeconds, threshold, divider, maxTracked, idleSeconds);
+    }
 
-        // Optimization: Handle retraction with no moved blocks separately
-        if (!isExtending && movedBlocks.isEmpty()) {
-            // Only need to handle piston state and head removal
-            updatePistonStateAndHead(pistonBlock, pistonLoc, pistonMaterial, pistonHeadLoc, direction, false);
-            return; // Skip the rest of the logic for moved blocks
+    /**
+     * Enables merging of drops from blocks broken by reduced piston moves from the 'drop-aggregation' section.
+     * Drops already gathered by the previous aggregator are still spawned when their window ends.
+     *
+     * @return The aggregator, or null if drop aggregation is disabled.
+     */
+    private DropAggregator loadDropAggregator() {
+        if (!getConfig().getBoolean("drop-aggregation.enabled", false)) {
+            return null;
         }
+        long windowTicks = Math.max(1L, getConfig().getLong("drop-aggregation.window-ticks", 20));
+        getLogger().info("Drop aggregation enabled: drops of blocks broken by pistons are merged per chunk every " + windowTicks + " ticks.");
+        return new DropAggregator(this, windowTicks);
+    }
 
-        // 2. Prepare data for synchronous processing (only if blocks are moved)
-        // Cloning is still good practice to avoid modifying original list from the event if needed later.
-        final List<BlockData> originalBlockData = new ArrayList<>(movedBlocks.size()); // Initialize with capacity
-        final List<Location> originalLocations = new ArrayList<>(movedBlocks.size()); // Initialize with capacity
-        final List<Location> newLocations = new ArrayList<>(movedBlocks.size());      // Initialize with capacity
+    /**
+     * Enables caching of planned piston moves from the 'move-plan-cache' section.
+     * Cached plans start over on every reload.
+     *
+     * @param batching Whether moves are batched, batched moves don't go through the planner.
+     * @return The cache, or null if it is disabled.
+     */
+    private MovePlanCache loadMovePlans(boolean batching) {
+        if (!getConfig().getBoolean("move-plan-cache.enabled", false)) {
+            return null;
+        }
+        if (batching) {
+            getLogger().warning("move-plan-cache does not apply to batched moves. Move plan cache disabled.");
+            return null;
+        }
+        int maxPistons = Math.max(1, getConfig().getInt("move-plan-cache.max-pistons", 4096));
+        getLogger().info("Move plan cache enabled: planned moves of up to " + maxPistons + " pistons are reused until their blocks change.");
+        return new MovePlanCache(maxPistons);
+    }
 
-        for (Block block : movedBlocks) {
-            Location blockLoc = block.getLocation();
-            if (isLocationLoaded(blockLoc)) { // Check if source block is loaded
-                originalBlockData.add(block.getBlockData().clone()); // Clone data
-                originalLocations.add(blockLoc.clone());             // Clone original location
-                newLocations.add(blockLoc.clone().add(direction.getModX(), direction.getModY(), direction.getModZ())); // Calculate and clone new location
-            } else {
-                getLogger().warning("Skipping unloaded block during piston movement preparation: " + blockLoc);
-                // If a block isn't loaded, abort the custom handling. Vanilla won't run either as we cancelled.
-                // This might leave things in a slightly odd state if some blocks were loaded and others weren't.
-                // Consider if reverting the cancellation is better here, though complex.
-                return;
+    /**
+     * Picks how reduced moves write their blocks from 'write-backend'. SECTION falls back to BUKKIT (with a warning)
+     * on servers it doesn't support.
+     */
+    private BlockWriter loadBlockWriter(boolean batching) {
+        String backend = getConfig().getString("write-backend", "BUKKIT");
+        if (backend.equalsIgnoreCase("SECTION")) {
+            if (batching) {
+                getLogger().warning("write-backend: SECTION does not apply to batched moves. Using BUKKIT.");
+                return BukkitBlockWriter.INSTANCE;
             }
+            SectionBlockWriter writer = SectionBlockWriter.create(getLogger());
+            if (writer != null) {
+                getLogger().info("Section write backend enabled: reduced moves are written straight into chunk sections.");
+                return writer;
+            }
+            getLogger().warning("Section write backend unavailable. Using BUKKIT.");
+        } else if (!backend.equalsIgnoreCase("BUKKIT")) {
+            getLogger().warning("Invalid write-backend '" + backend + "' in config.yml. Using BUKKIT.");
+        }
+        return BukkitBlockWriter.INSTANCE;
+    }
+
+    /**
+     * Enables MSPT-adaptive handling from the 'adaptive-tiers' section. The tier starts over at CALM on every reload
+     * and is picked again from the next tick.
+     *
+     * @return The tiers, or null if they are disabled (everything configured always applies).
+     */
+    private LoadTiers loadTiers() {
+        if (!getConfig().getBoolean("adaptive-tiers.enabled", false)) {
+            return null;
+        }
+        if (isFolia()) {
+            // Folia has no global tick to measure
+            getLogger().warning("adaptive-tiers is not supported on Folia. Pistons are always handled as configured.");
+            return null;
         }
+        double reduceEnter = getConfig().getDouble("adaptive-tiers.reduce.enter-mspt", 30);
+        double reduceExit = getConfig().getDouble("adaptive-tiers.reduce.exit-mspt", 25);
+        double shedEnter = getConfig().getDouble("adaptive-tiers.shed.enter-mspt", 45);
+        double shedExit = getConfig().getDouble("adaptive-tiers.shed.exit-mspt", 40);
+        if (reduceExit > reduceEnter || shedExit > shedEnter || shedEnter < reduceEnter) {
+            getLogger().warning("adaptive-tiers needs exit-mspt <= enter-mspt for each tier and shed.enter-mspt >= reduce.enter-mspt."
+                    + " Adaptive tiers disabled.");
+            return null;
+        }
+        int windowTicks = getConfig().getInt("adaptive-tiers.window-ticks", 100);
+        long minTierSeconds = getConfig().getLong("adaptive-tiers.min-tier-seconds", 15);
+        getLogger().info("Adaptive tiers enabled: reduced moves from " + reduceEnter + " MSPT, throttling and clock division from "
+                + shedEnter + " MSPT, vanilla below that.");
+        return new LoadTiers(reduceEnter, reduceExit, shedEnter, shedExit, windowTicks, minTierSeconds, getLogger());
+    }
 
-        // 3. Perform the block manipulation synchronously
-        // Folia ensures this code runs on the correct region thread because it's part of the event handler.
+    /**
+     * Starts recording piston events to a new trace file from the 'trace' section.
+     * Every reload starts a new file, the previous one is closed when the new snapshot is swapped in.
+     *
+     * @return The recorder, or null if tracing is disabled or the file couldn't be created.
+     */
+    private PistonTraceRecorder loadTraceRecorder() {
+        if (!getConfig().getBoolean("trace.enabled", false)) {
+            return null;
+        }
+        File directory = new File(getDataFolder(), getConfig().getString("trace.directory", "traces"));
+        long maxBytes = Math.max(1L, getConfig().getLong("trace.max-size-mb", 256)) * 1024 * 1024;
+        String name = "pistons-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        File file = new File(directory, name + ".trace");
+        // Two reloads within the same second
+        for (int i = 2; file.exists(); i++) {
+            file = new File(directory, name + "-" + i + ".trace");
+        }
         try {
-            // A) Clear the original locations first (in reverse order)
-            // Create a mutable copy for reversing if needed, but iterating backwards might be slightly faster
-            // Collections.reverse(originalLocations); // Reversing the locations list itself
-            for (int i = originalLocations.size() - 1; i >= 0; i--) { // Iterate backwards
-                Location loc = originalLocations.get(i);
-                // Check loaded state again just before modifying
-                if (isLocationLoaded(loc)) {
-                    Block block = loc.getBlock(); // Cache block object
-                    // Only set to AIR if it's not already AIR (minor optimization)
-                    if (block.getType() != Material.AIR) {
-                        block.setType(Material.AIR, false); // Set to Air, NO physics update
-                    }
-                } else {
-                    getLogger().warning("Original block location unloaded before clearing: " + loc);
-                }
+            PistonTraceRecorder recorder = new PistonTraceRecorder(file, maxBytes, getLogger());
+            getLogger().info("Recording piston events to " + file.getPath() + " (up to " + maxBytes / 1024 / 1024 + " MB).");
+            return recorder;
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not create piston trace " + file + ". Trace recording disabled.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Enables hot-path metrics from the 'metrics' section and (re)schedules the periodic dump.
+     * Metrics start over on every reload.
+     *
+     * @return The metrics, or null if they are disabled.
+     */
+    private PistonMetrics loadMetrics() {
+        if (metricsDumpTask != null) {
+            metricsDumpTask.cancel();
+            metricsDumpTask = null;
+        }
+        if (!getConfig().getBoolean("metrics.enabled", true)) {
+            return null;
+        }
+        PistonMetrics metrics = new PistonMetrics(getConfig().getInt("metrics.hotspot-slots", 64));
+
+        long interval = getConfig().getLong("metrics.dump.interval-seconds", 0);
+        if (interval <= 0) {
+            return metrics;
+        }
+        String format = getConfig().getString("metrics.dump.format", "CSV");
+        boolean json;
+        if (format.equalsIgnoreCase("JSON")) {
+            json = true;
+        } else {
+            if (!format.equalsIgnoreCase("CSV")) {
+                getLogger().warning("Invalid metrics.dump.format '" + format + "' in config.yml. Using CSV.");
             }
+            json = false;
+        }
+        // File IO stays off the tick threads
+        metricsDumpTask = getServer().getAsyncScheduler().runAtFixedRate(this, task -> dumpMetrics(metrics, json),
+                interval, interval, TimeUnit.SECONDS);
+        getLogger().info("Dumping piston metrics every " + interval + "s to " + (json ? "stats.json" : "stats.csv") + ".");
+        return metrics;
+    }
 
+    /**
+     * Writes the metrics to the plugin folder: stats.csv gets rows appended, stats.json is overwritten with the latest snapshot.
+     */
+    private void dumpMetrics(PistonMetrics metrics, boolean json) {
+        File file = new File(getDataFolder(), json ? "stats.json" : "stats.csv");
+        boolean header = !file.exists();
+        try (Writer writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8, !json))) {
+            if (json) {
+                metrics.writeJson(writer, 10);
+            } else {
+                metrics.writeCsv(writer, header);
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not write piston metrics to " + file, e);
+        }
+    }
 
-            // B) Place blocks in the new locations (in the original order)
-            for (int i = 0; i < originalBlockData.size(); i++) {
-                Location newLoc = newLocations.get(i);
-                BlockData dataToPlace = originalBlockData.get(i); // Use cloned data
-
-                if (isLocationLoaded(newLoc)) {
-                    // Make sure we aren't trying to place where the head should be
-                    if (!newLoc.equals(pistonHeadLoc)) {
-                        Block targetBlock = newLoc.getBlock();
-                        // Only place if the data is not AIR (since the target is likely already AIR from step A)
-                        if (dataToPlace.getMaterial() != Material.AIR) {
-                            targetBlock.setBlockData(dataToPlace, false); // Place block, NO physics update
-                        }
-                    } else {
-                        // This case should be rare if event.getBlocks() excludes the head location, log if it happens.
-                        getLogger().warning("Attempted to place moved block where piston head should be at " + newLoc);
-                    }
-                } else {
-                    getLogger().warning("Skipping placement at unloaded location: " + newLoc);
-                    // Inconsistency introduced here if target chunk unloads!
-                }
+    private static boolean isFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // --- Command Handling ---
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        // Check base permission first
+        if (!sender.hasPermission("pistonupdatereducer.command.base")) {
+            sender.sendMessage(ChatColor.RED + "You do not have permission to use this command.");
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
+            // Check reload permission
+            if (!sender.hasPermission("pistonupdatereducer.command.reload")) {
+                sender.sendMessage(ChatColor.RED + "You do not have permission to reload the configuration.");
+                return true;
             }
 
-            // C) Manually update the piston block state and head
-            // Pass cached pistonHeadLoc
-            updatePistonStateAndHead(pistonBlock, pistonLoc, pistonMaterial, pistonHeadLoc, direction, isExtending);
+            // Reload the configuration
+            loadConfiguration();
+            sender.sendMessage(ChatColor.GREEN + "PistonUpdateReducer configuration reloaded!");
+            return true;
+        }
 
-            // Optional: Log success
-            // getLogger().info("Synchronously handled piston " + (isExtending ? "extend" : "retract") + " for " + pistonLoc);
+        if (args.length == 1 && args[0].equalsIgnoreCase("throttled")) {
+            // Check throttled permission
+            if (!sender.hasPermission("pistonupdatereducer.command.throttled")) {
+                sender.sendMessage(ChatColor.RED + "You do not have permission to view throttled chunks.");
+                return true;
+            }
+            sendThrottledChunks(sender);
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("alloc")) {
+            // Check alloc permission
+            if (!sender.hasPermission("pistonupdatereducer.command.alloc")) {
+                sender.sendMessage(ChatColor.RED + "You do not have permission to view allocation statistics.");
+                return true;
+            }
+            AllocationCounter allocations = pistonHandler.getSettings().allocationCounter();
+            if (allocations == null) {
+                sender.sendMessage(ChatColor.YELLOW + "Allocation tracking is disabled (debug.track-allocations in config.yml).");
+            } else {
+                sender.sendMessage(ChatColor.GOLD + "Handled piston events: " + allocations.samples()
+                        + ChatColor.GRAY + ", " + String.format("%.1f", allocations.bytesPerEvent()) + " bytes allocated per event.");
+            }
+            return true;
+        }
 
-        } catch (Exception e) {
-            // Log any errors occurring synchronously
-            getLogger().log(Level.SEVERE, "Error during synchronous piston block manipulation for " + pistonLoc, e);
-            // Consider re-throwing or handling more gracefully depending on the error.
+        if (args.length == 1 && args[0].equalsIgnoreCase("stats")) {
+            // Check stats permission
+            if (!sender.hasPermission("pistonupdatereducer.command.stats")) {
+                sender.sendMessage(ChatColor.RED + "You do not have permission to view piston statistics.");
+                return true;
+            }
+            sendStats(sender);
+            return true;
         }
+
+        // Show basic usage if command is incorrect
+        sender.sendMessage(ChatColor.YELLOW + "Usage: /" + label + " <reload|throttled|alloc|stats>");
+        return true;
     }
 
     /**
-     * Helper method to update the piston block's state and place/remove the piston head.
-     * Extracted for clarity and reuse.
-     *
-     * @param pistonBlock The piston block itself.
-     * @param pistonLoc The location of the piston block.
-     * @param pistonMaterial The material of the piston (PISTON or STICKY_PISTON).
-     * @param pistonHeadLoc The pre-calculated location where the piston head should be/was.
-     * @param direction The direction the piston is facing.
-     * @param isExtending The target state (true for extended, false for retracted).
+     * Shows event counters, move latency, busiest materials, hottest pistons and suppressed warnings.
      */
-    private void updatePistonStateAndHead(Block pistonBlock, Location pistonLoc, Material pistonMaterial, Location pistonHeadLoc, BlockFace direction, boolean isExtending) {
-        try {
-            if (isLocationLoaded(pistonLoc)) { // Check piston location loaded state again
-                Block currentPistonBlock = pistonBlock; // Use the event's block object (should be safe in sync event)
-                if (currentPistonBlock.getType() == pistonMaterial) { // Check it's still the same piston type
-                    BlockData pistonData = currentPistonBlock.getBlockData();
-                    if (pistonData instanceof Piston) {
-                        Piston piston = (Piston) pistonData;
-
-                        if (piston.isExtended() != isExtending) {
-                            piston.setExtended(isExtending);
-                            // Apply physics for the piston itself ONLY.
-                            currentPistonBlock.setBlockData(piston, true);
-
-                            // Handle the piston head block
-                            // Location headLoc = pistonHeadLoc; // Use parameter
-                            if (isLocationLoaded(pistonHeadLoc)) {
-                                Block headBlock = pistonHeadLoc.getBlock();
-                                if (isExtending) {
-                                    // Place piston head
-                                    BlockData headData = Bukkit.createBlockData(Material.PISTON_HEAD);
-                                    if (headData instanceof PistonHead) {
-                                        PistonHead pistonHead = (PistonHead) headData;
-                                        pistonHead.setFacing(direction); // Directional is implicitly handled via PistonHead
-                                        pistonHead.setType(pistonMaterial == Material.STICKY_PISTON ? PistonHead.Type.STICKY : PistonHead.Type.NORMAL);
-                                        pistonHead.setShort(false);
-                                        headBlock.setBlockData(pistonHead, false); // NO physics update
-                                    } else {
-                                        getLogger().warning("Could not create PistonHead BlockData at " + pistonHeadLoc);
-                                    }
-                                } else {
-                                    // Remove piston head if it exists
-                                    if (headBlock.getType() == Material.PISTON_HEAD) {
-                                        headBlock.setType(Material.AIR, false); // NO physics update
-                                    }
-                                }
-                            } else {
-                                getLogger().warning("Piston head location unloaded: " + pistonHeadLoc);
-                            }
-                        } // else piston state already matched, do nothing
-                    } else {
-                        getLogger().warning("Block at " + pistonLoc + " is no longer a Piston BlockData type!");
-                    }
-                } else {
-                    getLogger().warning("Block at " + pistonLoc + " is no longer the expected piston material!");
-                }
-            } else {
-                getLogger().warning("Piston location unloaded before state update: " + pistonLoc);
+    private void sendStats(CommandSender sender) {
+        PistonMetrics metrics = pistonHandler.getSettings().metrics(); // Read once, a reload may swap it
+        if (metrics == null) {
+            sender.sendMessage(ChatColor.YELLOW + "Metrics are disabled (metrics.enabled in config.yml).");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "PistonUpdateReducer stats" + ChatColor.GRAY + " (last " + (metrics.uptimeMillis() / 1000) + "s)");
+        LatencyHistogram latency = metrics.handleLatency();
+        sender.sendMessage(ChatColor.YELLOW + "Handled moves: " + ChatColor.WHITE + latency.count()
+                + ChatColor.GRAY + String.format(", mean %.1fus, p50 <= %.1fus, p99 <= %.1fus, p99.9 <= %.1fus",
+                latency.meanNanos() / 1000.0, latency.percentileNanos(50) / 1000.0,
+                latency.percentileNanos(99) / 1000.0, latency.percentileNanos(99.9) / 1000.0));
+
+        for (PistonMetrics.WorldMetrics world : metrics.worlds()) {
+            sender.sendMessage(ChatColor.YELLOW + world.name() + ": " + ChatColor.GREEN + world.intercepted() + " intercepted"
+                    + ChatColor.GRAY + ", " + world.passed() + " passed through");
+            for (long[] spot : world.hotspots(5)) {
+                sender.sendMessage(ChatColor.GRAY + "  piston " + BlockKeys.blockX(spot[0]) + ", " + BlockKeys.blockY(spot[0])
+                        + ", " + BlockKeys.blockZ(spot[0]) + ": " + ChatColor.WHITE + "~" + spot[1] + " events");
             }
-        } catch (Exception e) {
-            getLogger().log(Level.SEVERE, "Error updating piston state/head for " + pistonLoc, e);
         }
-    }
 
+        List<PistonMetrics.MaterialCount> materials = metrics.materials();
+        for (int i = 0; i < Math.min(5, materials.size()); i++) {
+            PistonMetrics.MaterialCount count = materials.get(i);
+            sender.sendMessage(ChatColor.YELLOW + count.material().name() + ": " + ChatColor.GREEN + count.intercepted()
+                    + " intercepted" + ChatColor.GRAY + ", " + count.passed() + " passed through");
+        }
+
+        PistonClockDetector clocks = pistonHandler.getSettings().clockDetector();
+        if (clocks != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Clock division: " + ChatColor.WHITE + clocks.dividedPistons() + " of "
+                    + clocks.trackedPistons() + " tracked pistons divided" + ChatColor.GRAY + ", " + clocks.skipped() + " extensions skipped");
+        }
+
+        DropAggregator drops = pistonHandler.getSettings().dropAggregator();
+        if (drops != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Drops: " + ChatColor.WHITE + drops.items() + " items from " + drops.brokenBlocks()
+                    + " broken blocks" + ChatColor.GRAY + ", spawned as " + drops.spawnedEntities() + " item entities");
+        }
+
+        MovePlanCache plans = pistonHandler.getSettings().movePlans();
+        if (plans != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Move plans: " + ChatColor.WHITE + plans.cachedPistons() + " pistons cached, "
+                    + plans.hits() + " hits" + ChatColor.GRAY + ", " + plans.misses() + " misses, " + plans.invalidations()
+                    + " invalidated, " + plans.evictions() + " evicted");
+        }
+
+        LoadTiers tiers = pistonHandler.getSettings().loadTiers();
+        if (tiers != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Load tier: " + ChatColor.WHITE + tiers.tier() + ChatColor.GRAY
+                    + String.format(" (average MSPT %.1f, %d tier changes)", tiers.averageMspt(), tiers.changes()));
+        }
+
+        if (pistonHandler.getSettings().blockWriter() instanceof SectionBlockWriter writer) {
+            sender.sendMessage(ChatColor.YELLOW + "Write backend: " + ChatColor.WHITE + writer.name() + ", " + writer.sectionWrites()
+                    + " section writes" + ChatColor.GRAY + ", " + writer.bukkitWrites() + " through Bukkit");
+        }
+
+        PistonTraceRecorder trace = pistonHandler.getSettings().traceRecorder();
+        if (trace != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Trace: " + ChatColor.WHITE + trace.events() + " events" + ChatColor.GRAY
+                    + " (" + trace.bytes() / 1024 + " KB, " + trace.dropped() + " dropped) in " + trace.file().getName());
+        }
+
+        Map<String, Long> warningTotals = warnings.totals();
+        if (!warningTotals.isEmpty()) {
+            sender.sendMessage(ChatColor.YELLOW + "Warnings: " + ChatColor.GRAY + warningTotals);
+        }
+        AllocationCounter allocations = pistonHandler.getSettings().allocationCounter();
+        if (allocations != null) {
+            sender.sendMessage(ChatColor.YELLOW + "Allocated: " + ChatColor.GRAY + String.format("%.1f", allocations.bytesPerEvent()) + " bytes per handled event");
+        }
+    }
 
     /**
-     * Helper method to check if a location and its chunk are loaded.
-     * Should be safe to call from the main region thread during event handling.
-     * @param loc The location to check.
-     * @return true if the location's world and chunk are loaded, false otherwise.
+     * Lists the chunks that had the most piston events throttled by the chunk limiter.
      */
-    private boolean isLocationLoaded(Location loc) {
-        // Added null check for world which could happen if location is invalid
-        if (loc == null || loc.getWorld() == null) {
-            return false;
+    private void sendThrottledChunks(CommandSender sender) {
+        ChunkPistonLimiter limiter = pistonHandler.getSettings().chunkLimiter(); // Read once, a reload may swap it
+        if (limiter == null) {
+            sender.sendMessage(ChatColor.YELLOW + "The chunk limiter is disabled (chunk-limiter.enabled in config.yml).");
+            return;
         }
-        try {
-            // Check chunk coordinates (blockX >> 4, blockZ >> 4)
-            return loc.getWorld().isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
-        } catch (Exception e) {
-            // Catch potential exceptions (though less likely on main thread)
-            getLogger().log(Level.WARNING, "Error checking if location is loaded: " + loc, e);
-            return false;
+
+        List<ChunkPistonLimiter.ThrottledChunk> top = limiter.topThrottled(10);
+        sender.sendMessage(ChatColor.GOLD + "Throttled piston events: " + limiter.totalThrottled()
+                + " across " + limiter.trackedChunks() + " tracked chunks.");
+        if (top.isEmpty()) {
+            sender.sendMessage(ChatColor.GRAY + "No chunk has been throttled yet.");
+            return;
+        }
+        for (ChunkPistonLimiter.ThrottledChunk chunk : top) {
+            sender.sendMessage(ChatColor.YELLOW + chunk.world() + " chunk " + chunk.chunkX() + ", " + chunk.chunkZ()
+                    + ChatColor.GRAY + " (blocks " + (chunk.chunkX() << 4) + ", " + (chunk.chunkZ() << 4) + "): "
+                    + ChatColor.RED + chunk.throttled() + " throttled"
+                    + ChatColor.GRAY + ", " + String.format("%.1f", chunk.tokens()) + " tokens left");
         }
     }
 }
@@ -0,0 +1,70 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Logs each kind of hot-path warning at most once per interval and counts the rest,
+ * so a farm in a half-loaded area can't flood the console.
+ * Messages are only built when they are actually logged.
+ */
+final class RateLimitedLogger {
+
+    private final Logger logger;
+    private final long intervalNanos;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    RateLimitedLogger(Logger logger, long intervalSeconds) {
+        this.logger = logger;
+        this.intervalNanos = Math.max(0, intervalSeconds) * 1_000_000_000L;
+    }
+
+    Logger logger() {
+        return logger;
+    }
+
+    /**
+     * @param key     Identifies the kind of warning (a constant string, not the message).
+     * @param message Builds the message, only called if the warning is logged.
+     */
+    void warning(String key, Supplier<String> message) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new Counter());
+        }
+        counter.total.increment();
+
+        long now = System.nanoTime();
+        long last = counter.lastLogged.get();
+        if (last != 0 && now - last < intervalNanos) {
+            counter.suppressed.increment();
+            return;
+        }
+        if (!counter.lastLogged.compareAndSet(last, now == 0 ? 1 : now)) {
+            counter.suppressed.increment(); // Another thread logged it just now
+            return;
+        }
+        long suppressed = counter.suppressed.sumThenReset();
+        logger.warning(message.get() + (suppressed > 0 ? " (" + suppressed + " similar warnings suppressed)" : ""));
+    }
+
+    /**
+     * @return Total warnings raised per key (logged or not), sorted by key.
+     */
+    Map<String, Long> totals() {
+        Map<String, Long> totals = new TreeMap<>();
+        counters.forEach((key, counter) -> totals.put(key, counter.total.sum()));
+        return totals;
+    }
+
+    private static final class Counter {
+        private final LongAdder total = new LongAdder();
+        private final LongAdder suppressed = new LongAdder();
+        private final AtomicLong lastLogged = new AtomicLong();
+    }
+}
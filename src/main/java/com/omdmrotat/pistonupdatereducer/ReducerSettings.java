@@ -0,0 +1,115 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of everything the piston handler reads from the config.
+ * A reload builds a complete new snapshot and swaps it in with a single volatile write,
+ * so event handlers on any (Folia region) thread see either the old or the new config, never a mix.
+ * Handlers should read the snapshot once per event and use that for the whole event.
+ */
+final class ReducerSettings {
+
+    // Target-blocks list and rules, compiled to lookup tables
+    private final PistonRules rules;
+
+    private final ChunkPistonLimiter chunkLimiter; // null when the limiter is disabled
+    private final boolean deferOverBudget;
+    private final int deferTicks;
+    private final PistonMoveBatcher moveBatcher; // null when batching is disabled
+    private final PistonMetrics metrics; // null when metrics are disabled
+    private final PistonClockDetector clockDetector; // null when clock detection is disabled
+    private final AllocationCounter allocationCounter; // null unless debug.track-allocations is on
+    private final DropAggregator dropAggregator; // null when drop aggregation is disabled
+    private final boolean selectiveUpdates; // neighbor-updates: SELECTIVE
+    private final MovePlanCache movePlans; // null when the move-plan cache is disabled
+    private final PistonTraceRecorder traceRecorder; // null unless trace recording is on
+    private final LoadTiers loadTiers; // null when adaptive tiers are disabled (always the full behavior)
+    private final BlockWriter blockWriter; // write-backend, never null
+
+    ReducerSettings(PistonRules rules, ChunkPistonLimiter chunkLimiter, boolean deferOverBudget, int deferTicks,
+                    PistonMoveBatcher moveBatcher, PistonMetrics metrics, PistonClockDetector clockDetector,
+                    AllocationCounter allocationCounter, DropAggregator dropAggregator, boolean selectiveUpdates,
+                    MovePlanCache movePlans, PistonTraceRecorder traceRecorder, LoadTiers loadTiers,
+                    BlockWriter blockWriter) {
+        this.rules = rules;
+        this.chunkLimiter = chunkLimiter;
+        this.deferOverBudget = deferOverBudget;
+        this.deferTicks = Math.max(1, deferTicks);
+        this.moveBatcher = moveBatcher;
+        this.metrics = metrics;
+        this.clockDetector = clockDetector;
+        this.allocationCounter = allocationCounter;
+        this.dropAggregator = dropAggregator;
+        this.selectiveUpdates = selectiveUpdates;
+        this.movePlans = movePlans;
+        this.traceRecorder = traceRecorder;
+        this.loadTiers = loadTiers;
+        this.blockWriter = blockWriter;
+    }
+
+    /**
+     * @return Settings that leave every piston to vanilla, used until the config has been loaded.
+     */
+    static ReducerSettings disabled() {
+        return new ReducerSettings(new PistonRules(Set.of(), List.of()), null, false, 5, null, null, null, null, null, false, null, null, null,
+                BukkitBlockWriter.INSTANCE);
+    }
+
+    PistonRules rules() {
+        return rules;
+    }
+
+    ChunkPistonLimiter chunkLimiter() {
+        return chunkLimiter;
+    }
+
+    boolean deferOverBudget() {
+        return deferOverBudget;
+    }
+
+    int deferTicks() {
+        return deferTicks;
+    }
+
+    PistonMoveBatcher moveBatcher() {
+        return moveBatcher;
+    }
+
+    PistonMetrics metrics() {
+        return metrics;
+    }
+
+    PistonClockDetector clockDetector() {
+        return clockDetector;
+    }
+
+    AllocationCounter allocationCounter() {
+        return allocationCounter;
+    }
+
+    DropAggregator dropAggregator() {
+        return dropAggregator;
+    }
+
+    boolean selectiveUpdates() {
+        return selectiveUpdates;
+    }
+
+    MovePlanCache movePlans() {
+        return movePlans;
+    }
+
+    PistonTraceRecorder traceRecorder() {
+        return traceRecorder;
+    }
+
+    LoadTiers loadTiers() {
+        return loadTiers;
+    }
+
+    BlockWriter blockWriter() {
+        return blockWriter;
+    }
+}
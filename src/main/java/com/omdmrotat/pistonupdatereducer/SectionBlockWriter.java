@@ -0,0 +1,291 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a move's blocks straight into the chunk sections (write-backend: SECTION), skipping the per-block
+ * Bukkit path (CraftBlock, chunk lookup, physics flags) for every write.
+ * Per chunk section of a move: one chunk, section and sky light source lookup and one light section status check.
+ * A chunk's heightmaps are kept per thread until another chunk is written, so the steady-state path doesn't allocate. Per changed block the heightmap and sky light source updates, the light check and the client update are still
+ * done, as vanilla does them: they depend on the exact spot (a heightmap only rescans when its top block goes, light
+ * spreads from each changed block), the light engine and the server queue them and send a chunk section's changed
+ * blocks as one packet per tick. One mutable position is reused for all of them.
+ * Only already loaded chunks are written, a section whose chunk isn't loaded goes through Bukkit.
+ * <p>
+ * Server internals are reached through method handles resolved once on Paper's Mojang-mapped server, only for the
+ * versions in {@link #SUPPORTED_VERSIONS}; anything else keeps the Bukkit backend. Blocks with a block entity or a
+ * point of interest (lodestones...) on either side of a write go through Bukkit, as do all writes after any error.
+ * Like the Bukkit path without physics, block place/remove callbacks are not run.
+ */
+final class SectionBlockWriter implements BlockWriter {
+
+    // Versions the handles below were written against
+    private static final Set<String> SUPPORTED_VERSIONS = Set.of("1.20.5", "1.20.6");
+
+    private final Logger logger;
+
+    private final MethodHandle worldHandle; // CraftWorld -> ServerLevel
+    private final MethodHandle blockState; // CraftBlockData -> BlockState
+    private final MethodHandle getChunk; // ServerChunkCache, chunkX, chunkZ -> LevelChunk if loaded, never loads
+    private final MethodHandle sectionIndex; // Level, y -> section index
+    private final MethodHandle getSection; // ChunkAccess, index -> LevelChunkSection
+    private final MethodHandle setSectionState; // LevelChunkSection, x, y, z, BlockState, lock -> previous BlockState
+    private final MethodHandle restoreSectionState; // Same, result dropped
+    private final MethodHandle hasOnlyAir; // LevelChunkSection -> boolean
+    private final MethodHandle hasBlockEntity; // BlockState -> boolean
+    private final MethodHandle hasPoi; // BlockState -> boolean (static)
+    private final MethodHandle heightmaps; // ChunkAccess -> Collection<Map.Entry<Heightmap.Types, Heightmap>>
+    private final MethodHandle updateHeightmap; // Heightmap, x, y, z, BlockState (result dropped)
+    private final MethodHandle skyLightSources; // ChunkAccess -> ChunkSkyLightSources
+    private final MethodHandle updateSkyLightSources; // ChunkSkyLightSources, BlockGetter, x, y, z (result dropped)
+    private final MethodHandle chunkSource; // ServerLevel -> ServerChunkCache
+    private final MethodHandle lightEngine; // ServerChunkCache -> light engine
+    private final MethodHandle blockChanged; // ServerChunkCache, BlockPos (only the section relative spot is kept)
+    private final MethodHandle checkBlock; // light engine, BlockPos (copied when queued)
+    private final MethodHandle updateSectionStatus; // light engine, SectionPos, boolean
+    private final MethodHandle newMutablePos; // -> BlockPos.MutableBlockPos
+    private final MethodHandle setMutablePos; // MutableBlockPos, x, y, z (result dropped)
+    private final MethodHandle sectionPos; // chunkX, sectionY, chunkZ -> SectionPos (static)
+    private final MethodHandle setUnsaved; // ChunkAccess, boolean
+
+    // Per thread: the heightmaps of the chunk written last, so later sections and moves in it don't copy them again
+    private static final ThreadLocal<ChunkHeightmaps> HEIGHTMAPS = ThreadLocal.withInitial(ChunkHeightmaps::new);
+
+    private volatile boolean failed;
+    private final LongAdder sectionWrites = new LongAdder();
+    private final LongAdder bukkitWrites = new LongAdder();
+
+    private SectionBlockWriter(Logger logger) throws ReflectiveOperationException {
+        this.logger = logger;
+        String craftPackage = Bukkit.getServer().getClass().getPackageName(); // org.bukkit.craftbukkit
+        Class<?> craftWorld = Class.forName(craftPackage + ".CraftWorld");
+        Class<?> craftBlockData = Class.forName(craftPackage + ".block.data.CraftBlockData");
+        Class<?> heightAccessor = Class.forName("net.minecraft.world.level.LevelHeightAccessor");
+        Class<?> chunkAccess = Class.forName("net.minecraft.world.level.chunk.ChunkAccess");
+        Class<?> section = Class.forName("net.minecraft.world.level.chunk.LevelChunkSection");
+        Class<?> state = Class.forName("net.minecraft.world.level.block.state.BlockState");
+        Class<?> stateBase = Class.forName("net.minecraft.world.level.block.state.BlockBehaviour$BlockStateBase");
+        Class<?> poiTypes = Class.forName("net.minecraft.world.entity.ai.village.poi.PoiTypes");
+        Class<?> heightmap = Class.forName("net.minecraft.world.level.levelgen.Heightmap");
+        Class<?> skySources = Class.forName("net.minecraft.world.level.lighting.ChunkSkyLightSources");
+        Class<?> blockGetter = Class.forName("net.minecraft.world.level.BlockGetter");
+        Class<?> serverLevel = Class.forName("net.minecraft.server.level.ServerLevel");
+        Class<?> chunkCache = Class.forName("net.minecraft.server.level.ServerChunkCache");
+        Class<?> levelLight = Class.forName("net.minecraft.world.level.lighting.LevelLightEngine");
+        Class<?> blockPos = Class.forName("net.minecraft.core.BlockPos");
+        Class<?> mutablePos = Class.forName("net.minecraft.core.BlockPos$MutableBlockPos");
+        Class<?> sectionPosClass = Class.forName("net.minecraft.core.SectionPos");
+
+        worldHandle = handle(craftWorld.getMethod("getHandle"), World.class, Object.class);
+        blockState = handle(craftBlockData.getMethod("getState"), Object.class, Object.class);
+        getChunk = handle(chunkCache.getMethod("getChunkAtIfLoadedImmediately", int.class, int.class),
+                Object.class, Object.class, int.class, int.class);
+        sectionIndex = handle(heightAccessor.getMethod("getSectionIndex", int.class), int.class, Object.class, int.class);
+        getSection = handle(chunkAccess.getMethod("getSection", int.class), Object.class, Object.class, int.class);
+        setSectionState = handle(section.getMethod("setBlockState", int.class, int.class, int.class, state, boolean.class),
+                Object.class, Object.class, int.class, int.class, int.class, Object.class, boolean.class);
+        restoreSectionState = setSectionState.asType(
+                MethodType.methodType(void.class, Object.class, int.class, int.class, int.class, Object.class, boolean.class));
+        hasOnlyAir = handle(section.getMethod("hasOnlyAir"), boolean.class, Object.class);
+        hasBlockEntity = handle(stateBase.getMethod("hasBlockEntity"), boolean.class, Object.class);
+        hasPoi = handle(poiTypes.getMethod("hasPoi", state), boolean.class, Object.class);
+        heightmaps = handle(chunkAccess.getMethod("getHeightmaps"), Object.class, Object.class);
+        updateHeightmap = handle(heightmap.getMethod("update", int.class, int.class, int.class, state),
+                void.class, Object.class, int.class, int.class, int.class, Object.class);
+        skyLightSources = handle(chunkAccess.getMethod("getSkyLightSources"), Object.class, Object.class);
+        updateSkyLightSources = handle(skySources.getMethod("update", blockGetter, int.class, int.class, int.class),
+                void.class, Object.class, Object.class, int.class, int.class, int.class);
+        chunkSource = handle(serverLevel.getMethod("getChunkSource"), Object.class, Object.class);
+        lightEngine = handle(chunkCache.getMethod("getLightEngine"), Object.class, Object.class);
+        blockChanged = handle(chunkCache.getMethod("blockChanged", blockPos), void.class, Object.class, Object.class);
+        checkBlock = handle(levelLight.getMethod("checkBlock", blockPos), void.class, Object.class, Object.class);
+        updateSectionStatus = handle(levelLight.getMethod("updateSectionStatus", sectionPosClass, boolean.class),
+                void.class, Object.class, Object.class, boolean.class);
+        newMutablePos = MethodHandles.publicLookup().unreflectConstructor(mutablePos.getConstructor())
+                .asType(MethodType.methodType(Object.class));
+        setMutablePos = handle(mutablePos.getMethod("set", int.class, int.class, int.class),
+                void.class, Object.class, int.class, int.class, int.class);
+        sectionPos = handle(sectionPosClass.getMethod("of", int.class, int.class, int.class), Object.class, int.class, int.class, int.class);
+        setUnsaved = handle(chunkAccess.getMethod("setUnsaved", boolean.class), void.class, Object.class, boolean.class);
+    }
+
+    /**
+     * @return The section writer, or null (with the reason logged) if this server isn't supported.
+     */
+    static SectionBlockWriter create(Logger logger) {
+        String version = Bukkit.getMinecraftVersion();
+        if (!SUPPORTED_VERSIONS.contains(version)) {
+            logger.warning("write-backend: SECTION does not support Minecraft " + version + " (supported: " + SUPPORTED_VERSIONS + ").");
+            return null;
+        }
+        try {
+            return new SectionBlockWriter(logger);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.WARNING, "write-backend: SECTION could not access the server internals it needs.", e);
+            return null;
+        }
+    }
+
+    // Unreflects a public method and adapts it to the exact type it is called with below
+    private static MethodHandle handle(Method method, Class<?> returnType, Class<?>... parameterTypes) throws IllegalAccessException {
+        return MethodHandles.publicLookup().unreflect(method).asType(MethodType.methodType(returnType, parameterTypes));
+    }
+
+    @Override
+    public void write(World world, MoveBuffer buffer, int[] order, int count) {
+        if (failed) {
+            BukkitBlockWriter.INSTANCE.write(world, buffer, order, count);
+            bukkitWrites.add(count);
+            return;
+        }
+        try {
+            writeSections(world, buffer, order, count);
+        } catch (Throwable t) {
+            failed = true;
+            logger.log(Level.SEVERE, "write-backend: SECTION failed, falling back to Bukkit block writes until the next reload.", t);
+            // Every write is a final state, so writing them all again through Bukkit fixes a half-applied move
+            BukkitBlockWriter.INSTANCE.write(world, buffer, order, count);
+            bukkitWrites.add(count);
+        }
+    }
+
+    private void writeSections(World world, MoveBuffer buffer, int[] order, int count) throws Throwable {
+        Object level = (Object) worldHandle.invokeExact(world);
+        Object chunks = (Object) chunkSource.invokeExact(level);
+        Object light = (Object) lightEngine.invokeExact(chunks);
+        Object blockPos = (Object) newMutablePos.invokeExact(); // One per move, moved to each changed block
+
+        int start = 0;
+        while (start < count) {
+            // The writes are sorted by section, find where this section's run ends
+            long section = BlockKeys.sectionKey(buffer.writePositions[order[start]]);
+            int end = start + 1;
+            while (end < count && BlockKeys.sectionKey(buffer.writePositions[order[end]]) == section) {
+                end++;
+            }
+            int chunkX = BlockKeys.blockX(section);
+            int sectionY = BlockKeys.blockY(section);
+            int chunkZ = BlockKeys.blockZ(section);
+
+            Object chunk = (Object) getChunk.invokeExact(chunks, chunkX, chunkZ);
+            if (chunk == null) {
+                // Unloaded since the move was planned, Bukkit handles it like any other write
+                for (int i = start; i < end; i++) {
+                    writeBukkit(world, buffer, order[i]);
+                }
+                start = end;
+                continue;
+            }
+            Object chunkSection = (Object) getSection.invokeExact(chunk, (int) sectionIndex.invokeExact(level, sectionY << 4));
+            boolean wasEmpty = (boolean) hasOnlyAir.invokeExact(chunkSection);
+            boolean changed = false;
+            ChunkHeightmaps chunkHeightmaps = heightmapsOf(chunk);
+            Object skySources = (Object) skyLightSources.invokeExact(chunk);
+
+            for (int i = start; i < end; i++) {
+                int write = order[i];
+                long position = buffer.writePositions[write];
+                int x = BlockKeys.blockX(position);
+                int y = BlockKeys.blockY(position);
+                int z = BlockKeys.blockZ(position);
+                Object state = (Object) blockState.invokeExact((Object) buffer.writeData[write]);
+                if ((boolean) hasBlockEntity.invokeExact(state) || (boolean) hasPoi.invokeExact(state)) {
+                    writeBukkit(world, buffer, write);
+                    continue;
+                }
+                Object previous = (Object) setSectionState.invokeExact(chunkSection, x & 15, y & 15, z & 15, state, true);
+                if (previous == state) {
+                    continue; // Already in place
+                }
+                if ((boolean) hasBlockEntity.invokeExact(previous) || (boolean) hasPoi.invokeExact(previous)) {
+                    // Replaced something that needs the full path: put it back and let Bukkit do it
+                    restoreSectionState.invokeExact(chunkSection, x & 15, y & 15, z & 15, previous, true);
+                    writeBukkit(world, buffer, write);
+                    continue;
+                }
+                for (int m = 0; m < chunkHeightmaps.count; m++) {
+                    updateHeightmap.invokeExact(chunkHeightmaps.heightmaps[m], x & 15, y, z & 15, state);
+                }
+                updateSkyLightSources.invokeExact(skySources, chunk, x & 15, y, z & 15);
+                setMutablePos.invokeExact(blockPos, x, y, z);
+                checkBlock.invokeExact(light, blockPos);
+                blockChanged.invokeExact(chunks, blockPos); // Sent with the section's other changes at the end of the tick
+                changed = true;
+                sectionWrites.increment();
+            }
+
+            boolean nowEmpty = (boolean) hasOnlyAir.invokeExact(chunkSection);
+            if (wasEmpty != nowEmpty) {
+                updateSectionStatus.invokeExact(light, (Object) sectionPos.invokeExact(chunkX, sectionY, chunkZ), nowEmpty);
+            }
+            if (changed) {
+                setUnsaved.invokeExact(chunk, true);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * @return This thread's heightmap buffer, filled with the chunk's heightmaps (only copied when the chunk changes).
+     */
+    private ChunkHeightmaps heightmapsOf(Object chunk) throws Throwable {
+        ChunkHeightmaps cached = HEIGHTMAPS.get();
+        if (cached.chunk.get() == chunk) {
+            return cached;
+        }
+        @SuppressWarnings("unchecked")
+        Collection<Map.Entry<?, ?>> maps = (Collection<Map.Entry<?, ?>>) (Object) heightmaps.invokeExact(chunk);
+        if (maps.size() > cached.heightmaps.length) {
+            cached.heightmaps = new Object[maps.size()];
+        }
+        int count = 0;
+        for (Map.Entry<?, ?> entry : maps) {
+            cached.heightmaps[count++] = entry.getValue();
+        }
+        Arrays.fill(cached.heightmaps, count, cached.heightmaps.length, null);
+        cached.count = count;
+        cached.chunk = new WeakReference<>(chunk);
+        return cached;
+    }
+
+    private void writeBukkit(World world, MoveBuffer buffer, int write) {
+        long position = buffer.writePositions[write];
+        world.getBlockAt(BlockKeys.blockX(position), BlockKeys.blockY(position), BlockKeys.blockZ(position))
+                .setBlockData(buffer.writeData[write], false);
+        bukkitWrites.increment();
+    }
+
+    @Override
+    public String name() {
+        return failed ? "SECTION (failed, using BUKKIT)" : "SECTION";
+    }
+
+    long sectionWrites() {
+        return sectionWrites.sum();
+    }
+
+    long bukkitWrites() {
+        return bukkitWrites.sum();
+    }
+
+    // A chunk's heightmap objects live as long as the chunk, so they can be reused until another chunk is written
+    private static final class ChunkHeightmaps {
+        private WeakReference<Object> chunk = new WeakReference<>(null); // Weak, an unloaded chunk must not be kept alive
+        private Object[] heightmaps = new Object[4]; // A LevelChunk keeps four
+        private int count;
+    }
+}
@@ -0,0 +1,156 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+
+/**
+ * Applies a planned multi-block move (slime and honey contraptions, see structure-moves in config.yml) in one go
+ * instead of block by block:
+ * <ul>
+ *     <li>every changed position is written exactly once with its final state (the block moving in, or air),
+ *     so no write can be overwritten by a later one</li>
+ *     <li>writes are sorted by chunk section and applied section by section, through the configured {@link BlockWriter},
+ *     without physics</li>
+ *     <li>the positions outside the move next to a changed write (its envelope) are collected once each, and the fewest
+ *     edge writes that touch all of them are held back and applied last with physics. Every outside neighbor gets
+ *     its update, shared edges are not updated twice, and interior positions get none</li>
+ * </ul>
+ * Bukkit can't notify a position without changing a block next to it, which is why the updates ride on edge writes.
+ * Uses the write and update arrays of the move's {@link MoveBuffer}, selective update flags are covered by the edge updates.
+ */
+final class StructureMover {
+
+    private StructureMover() {
+    }
+
+    /**
+     * Applies the move's collected writes (sorted by chunk section, see PistonHandler#collectWrites).
+     *
+     * @param writer Writes every position that doesn't carry the neighbor updates.
+     */
+    static void apply(MoveBuffer buffer, World world, long pistonKey, long headKey, BlockWriter writer) {
+        // 1. The envelope: outside positions next to a write that changes the block there
+        buffer.updateSize = 0;
+        for (int i = 0; i < buffer.writeSize; i++) {
+            if (changesBlock(buffer, i)) {
+                collectOutsideNeighbors(buffer, buffer.writePositions[i], pistonKey, headKey);
+            }
+        }
+
+        // 2. Greedily pick the changed write that reaches the most envelope positions left, until all are reached
+        int[] edgeOrder = buffer.edgeOrder;
+        int edges = 0;
+        int remaining = buffer.updateSize;
+        while (remaining > 0) {
+            int best = -1;
+            int bestReach = 0;
+            for (int i = 0; i < buffer.writeSize; i++) {
+                if (!changesBlock(buffer, i) || contains(edgeOrder, edges, i)) {
+                    continue;
+                }
+                int reach = reach(buffer, buffer.writePositions[i], remaining);
+                if (reach > bestReach) {
+                    best = i;
+                    bestReach = reach;
+                }
+            }
+            if (best < 0) {
+                break; // Can't happen, every envelope position came from a changed write
+            }
+            edgeOrder[edges++] = best;
+            remaining = dropReached(buffer, buffer.writePositions[best], remaining);
+        }
+
+        // 3. Everything else without physics, section by section (writeOrder stays sorted)
+        int[] order = buffer.writeOrder;
+        int count = 0;
+        for (int i = 0; i < buffer.writeSize; i++) {
+            int write = order[i];
+            if (!contains(edgeOrder, edges, write)) {
+                order[count++] = write;
+            }
+        }
+        writer.write(world, buffer, order, count);
+
+        // 4. The picked edge writes last, with physics, so each envelope position sees the finished structure
+        for (int i = 0; i < edges; i++) {
+            long position = buffer.writePositions[edgeOrder[i]];
+            world.getBlockAt(BlockKeys.blockX(position), BlockKeys.blockY(position), BlockKeys.blockZ(position))
+                    .setBlockData(buffer.writeData[edgeOrder[i]], true);
+        }
+    }
+
+    /**
+     * @return false if the write puts back the state that was already there (a block replaced by an identical one),
+     * which would fire no updates with physics either.
+     */
+    private static boolean changesBlock(MoveBuffer buffer, int write) {
+        int source = buffer.sourceIndex(buffer.writePositions[write]);
+        return source < 0 || !buffer.writeData[write].equals(buffer.data[source]);
+    }
+
+    private static void collectOutsideNeighbors(MoveBuffer buffer, long position, long pistonKey, long headKey) {
+        int x = BlockKeys.blockX(position);
+        int y = BlockKeys.blockY(position);
+        int z = BlockKeys.blockZ(position);
+        addIfOutside(buffer, BlockKeys.blockKey(x + 1, y, z), pistonKey, headKey);
+        addIfOutside(buffer, BlockKeys.blockKey(x - 1, y, z), pistonKey, headKey);
+        addIfOutside(buffer, BlockKeys.blockKey(x, y + 1, z), pistonKey, headKey);
+        addIfOutside(buffer, BlockKeys.blockKey(x, y - 1, z), pistonKey, headKey);
+        addIfOutside(buffer, BlockKeys.blockKey(x, y, z + 1), pistonKey, headKey);
+        addIfOutside(buffer, BlockKeys.blockKey(x, y, z - 1), pistonKey, headKey);
+    }
+
+    private static void addIfOutside(MoveBuffer buffer, long position, long pistonKey, long headKey) {
+        // The piston and its head are updated by the piston's own state write
+        if (position != pistonKey && position != headKey && !buffer.isWritten(position)) {
+            buffer.addUpdateTarget(position);
+        }
+    }
+
+    /**
+     * @return How many of the first {@code remaining} envelope positions are next to this position.
+     */
+    private static int reach(MoveBuffer buffer, long position, int remaining) {
+        int reach = 0;
+        for (int i = 0; i < remaining; i++) {
+            if (adjacent(position, buffer.updateTargets[i])) {
+                reach++;
+            }
+        }
+        return reach;
+    }
+
+    /**
+     * Moves the envelope positions next to this position behind the first {@code remaining} (swap with the last).
+     *
+     * @return The new number of envelope positions left.
+     */
+    private static int dropReached(MoveBuffer buffer, long position, int remaining) {
+        long[] targets = buffer.updateTargets;
+        for (int i = 0; i < remaining; ) {
+            if (adjacent(position, targets[i])) {
+                long reached = targets[i];
+                targets[i] = targets[--remaining];
+                targets[remaining] = reached;
+            } else {
+                i++;
+            }
+        }
+        return remaining;
+    }
+
+    private static boolean adjacent(long a, long b) {
+        return Math.abs(BlockKeys.blockX(a) - BlockKeys.blockX(b))
+                + Math.abs(BlockKeys.blockY(a) - BlockKeys.blockY(b))
+                + Math.abs(BlockKeys.blockZ(a) - BlockKeys.blockZ(b)) == 1;
+    }
+
+    private static boolean contains(int[] order, int count, int write) {
+        for (int i = 0; i < count; i++) {
+            if (order[i] == write) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,102 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkPistonLimiterTest {
+
+    // Refills so slowly that no token comes back during a test
+    private static final double NO_REFILL = 0.0001;
+
+    private final World world = new FakeWorld().world();
+
+    @Test
+    void burstIsSpentThenEventsAreThrottled() {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(NO_REFILL, 3, 0, 0, 60);
+
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertFalse(limiter.tryAcquire(world, 0, 0));
+        assertFalse(limiter.tryAcquire(world, 0, 0));
+        assertEquals(2, limiter.totalThrottled());
+    }
+
+    @Test
+    void chunksAndWorldsHaveTheirOwnBuckets() {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(NO_REFILL, 1, 0, 0, 60);
+
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertFalse(limiter.tryAcquire(world, 0, 0));
+        assertTrue(limiter.tryAcquire(world, 1, 0));
+        assertTrue(limiter.tryAcquire(world, -1, -1));
+        assertTrue(limiter.tryAcquire(new FakeWorld().world(), 0, 0));
+        assertEquals(4, limiter.trackedChunks());
+    }
+
+    @Test
+    void tokensRefillOverTime() throws InterruptedException {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(10, 1, 0, 0, 60); // One token per 100 ms
+
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertFalse(limiter.tryAcquire(world, 0, 0));
+        Thread.sleep(150);
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+    }
+
+    @Test
+    void worldBudgetCapsAllChunksTogether() {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(NO_REFILL, 1, NO_REFILL, 2, 60);
+
+        assertTrue(limiter.tryAcquire(world, 0, 0));
+        assertFalse(limiter.tryAcquire(world, 0, 0)); // Chunk is empty, the world token is not taken
+        assertTrue(limiter.tryAcquire(world, 1, 0));
+        assertFalse(limiter.tryAcquire(world, 2, 0), "world budget spent");
+    }
+
+    @Test
+    void topThrottledListsTheBusiestChunksFirst() {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(NO_REFILL, 1, 0, 0, 60);
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire(world, 5, 5);
+        }
+        for (int i = 0; i < 2; i++) {
+            limiter.tryAcquire(world, -3, 7);
+        }
+        limiter.tryAcquire(world, 9, 9); // Never throttled
+
+        List<ChunkPistonLimiter.ThrottledChunk> top = limiter.topThrottled(10);
+        assertEquals(2, top.size());
+        assertEquals(5, top.get(0).chunkX());
+        assertEquals(3, top.get(0).throttled());
+        assertEquals(-3, top.get(1).chunkX());
+        assertEquals(7, top.get(1).chunkZ());
+        assertEquals(1, top.get(1).throttled());
+        assertEquals("fake_world", top.get(0).world());
+        assertEquals(1, limiter.topThrottled(1).size());
+    }
+
+    @Test
+    void manyChunksKeepTheirBuckets() {
+        ChunkPistonLimiter limiter = new ChunkPistonLimiter(NO_REFILL, 1, 0, 0, 60);
+        // Enough chunks to grow every stripe's table several times
+        for (int x = -40; x < 40; x++) {
+            for (int z = -40; z < 40; z++) {
+                assertTrue(limiter.tryAcquire(world, x, z));
+            }
+        }
+        for (int x = -40; x < 40; x++) {
+            for (int z = -40; z < 40; z++) {
+                assertFalse(limiter.tryAcquire(world, x, z));
+            }
+        }
+        assertEquals(6400, limiter.trackedChunks());
+        assertEquals(6400, limiter.totalThrottled());
+    }
+}
@@ -0,0 +1,114 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DropAggregatorTest {
+
+    private final FakeWorld world = new FakeWorld();
+    private final DropAggregator drops = new DropAggregator(FakeServer.plugin(), 20);
+
+    @Test
+    void sameItemsInAChunkAreMergedIntoOneStack() {
+        for (int i = 0; i < 5; i++) {
+            drops.collect(block(3, 64 + i, 4, Material.BAMBOO));
+        }
+
+        assertEquals(1, FakeServer.runScheduledTasks(), "one flush per chunk and window");
+        List<FakeWorld.DroppedItem> dropped = world.dropped();
+        assertEquals(1, dropped.size());
+        assertEquals(Material.BAMBOO, dropped.get(0).stack().getType());
+        assertEquals(5, dropped.get(0).stack().getAmount());
+        assertEquals(5, drops.brokenBlocks());
+        assertEquals(5, drops.items());
+        assertEquals(1, drops.spawnedEntities());
+    }
+
+    @Test
+    void mergedStacksDropAtTheFirstBrokenBlock() {
+        drops.collect(block(3, 64, 4, Material.BAMBOO));
+        drops.collect(block(10, 70, 12, Material.BAMBOO));
+        FakeServer.runScheduledTasks();
+
+        Location location = world.dropped().get(0).location();
+        assertEquals(3.5, location.getX(), 0);
+        assertEquals(64.5, location.getY(), 0);
+        assertEquals(4.5, location.getZ(), 0);
+    }
+
+    @Test
+    void differentItemsStaySeparate() {
+        drops.collect(block(0, 64, 0, Material.BAMBOO));
+        drops.collect(block(1, 64, 0, Material.SUGAR_CANE));
+        drops.collect(block(2, 64, 0, Material.BAMBOO));
+        FakeServer.runScheduledTasks();
+
+        List<FakeWorld.DroppedItem> dropped = world.dropped();
+        assertEquals(2, dropped.size());
+        assertEquals(Material.BAMBOO, dropped.get(0).stack().getType());
+        assertEquals(2, dropped.get(0).stack().getAmount());
+        assertEquals(Material.SUGAR_CANE, dropped.get(1).stack().getType());
+        assertEquals(1, dropped.get(1).stack().getAmount());
+    }
+
+    @Test
+    void chunksAreMergedSeparately() {
+        drops.collect(block(15, 64, 0, Material.BAMBOO));
+        drops.collect(block(16, 64, 0, Material.BAMBOO)); // Next chunk
+        drops.collect(block(-1, 64, 0, Material.BAMBOO));
+
+        assertEquals(3, FakeServer.runScheduledTasks());
+        assertEquals(3, world.dropped().size());
+        assertEquals(3, drops.spawnedEntities());
+    }
+
+    @Test
+    void stacksAreSplitIntoLegalSizes() {
+        for (int i = 0; i < 70; i++) {
+            drops.collect(block(i % 16, 64 + i / 16, 0, Material.BAMBOO));
+        }
+        FakeServer.runScheduledTasks();
+
+        List<FakeWorld.DroppedItem> dropped = world.dropped();
+        assertEquals(2, dropped.size());
+        assertEquals(64, dropped.get(0).stack().getAmount());
+        assertEquals(6, dropped.get(1).stack().getAmount());
+        assertEquals(70, drops.items());
+    }
+
+    @Test
+    void blocksWithoutDropsAreOnlyCounted() {
+        drops.collect(block(0, 64, 0, Material.AIR));
+
+        assertEquals(0, FakeServer.runScheduledTasks());
+        assertEquals(0, world.dropped().size());
+        assertEquals(1, drops.brokenBlocks());
+        assertEquals(0, drops.items());
+    }
+
+    @Test
+    void flushAllSpawnsPendingDropsOnce() {
+        drops.collect(block(0, 64, 0, Material.BAMBOO));
+        drops.collect(block(40, 64, 40, Material.CACTUS));
+
+        drops.flushAll();
+        assertEquals(2, world.dropped().size());
+        FakeServer.runScheduledTasks(); // The scheduled flushes find nothing left
+        assertEquals(2, world.dropped().size());
+
+        drops.collect(block(0, 64, 0, Material.BAMBOO)); // A new window starts
+        assertEquals(1, FakeServer.runScheduledTasks());
+        assertEquals(3, world.dropped().size());
+    }
+
+    private Block block(int x, int y, int z, Material type) {
+        world.set(x, y, z, FakeBlockData.create(type));
+        return world.blockAt(x, y, z);
+    }
+}
@@ -0,0 +1,81 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LoadTiersTest {
+
+    private static final Logger LOGGER = Logger.getLogger("PistonUpdateReducer-test");
+
+    // REDUCE entered at 40 and left below 30, SHED entered at 60 and left below 50.
+    // A one tick window makes the average the last tick, no minimum time per tier.
+    private static LoadTiers tiers() {
+        return new LoadTiers(40, 30, 60, 50, 1, 0, LOGGER);
+    }
+
+    @Test
+    void startsCalmAndStaysBelowTheEnterThreshold() {
+        LoadTiers tiers = tiers();
+        tiers.recordTick(39.9);
+        assertEquals(LoadTiers.Tier.CALM, tiers.tier());
+        assertEquals(0, tiers.changes());
+    }
+
+    @Test
+    void leavesATierOnlyBelowItsExitThreshold() {
+        LoadTiers tiers = tiers();
+        tiers.recordTick(40);
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        tiers.recordTick(35); // Below enter, above exit
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        tiers.recordTick(30);
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier(), "exit threshold is exclusive");
+        tiers.recordTick(29.9);
+        assertEquals(LoadTiers.Tier.CALM, tiers.tier());
+        assertEquals(2, tiers.changes());
+    }
+
+    @Test
+    void stepsUpStraightToShedAndDownOneTierAtATime() {
+        LoadTiers tiers = tiers();
+        tiers.recordTick(80);
+        assertEquals(LoadTiers.Tier.SHED, tiers.tier());
+        tiers.recordTick(55);
+        assertEquals(LoadTiers.Tier.SHED, tiers.tier());
+        tiers.recordTick(5);
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        tiers.recordTick(5);
+        assertEquals(LoadTiers.Tier.CALM, tiers.tier());
+        assertEquals(3, tiers.changes());
+    }
+
+    @Test
+    void minimumTimePerTierHoldsTheTier() {
+        LoadTiers tiers = new LoadTiers(40, 30, 60, 50, 1, 3600, LOGGER);
+        tiers.recordTick(45); // The first change is never held back
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        tiers.recordTick(90);
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        tiers.recordTick(1);
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        assertEquals(1, tiers.changes());
+    }
+
+    @Test
+    void averageSmoothsSingleSpikes() {
+        LoadTiers tiers = new LoadTiers(40, 30, 60, 50, 20, 0, LOGGER);
+        for (int i = 0; i < 100; i++) {
+            tiers.recordTick(20);
+        }
+        tiers.recordTick(200); // One lag spike
+        assertEquals(LoadTiers.Tier.CALM, tiers.tier());
+        for (int i = 0; i < 100; i++) {
+            tiers.recordTick(50);
+        }
+        assertEquals(LoadTiers.Tier.REDUCE, tiers.tier());
+        assertEquals(50, tiers.averageMspt(), 0.5);
+    }
+}
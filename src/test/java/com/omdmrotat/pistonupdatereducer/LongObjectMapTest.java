@@ -0,0 +1,119 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongObjectMapTest {
+
+    private static final int CAPACITY = 16; // What new LongObjectMap<>(8) allocates
+
+    @Test
+    void removingTheHeadOfAProbeChainKeepsTheRestReachable() {
+        List<Long> chain = keysWithHome(3, 3);
+        long neighbor = keysWithHome(4, 1).get(0); // Home slot inside the chain, gets pushed behind it
+        LongObjectMap<String> map = new LongObjectMap<>(8);
+        for (long key : chain) {
+            map.put(key, "chain " + key);
+        }
+        map.put(neighbor, "neighbor");
+
+        assertEquals("chain " + chain.get(0), map.remove(chain.get(0)));
+
+        assertNull(map.get(chain.get(0)));
+        assertEquals("chain " + chain.get(1), map.get(chain.get(1)));
+        assertEquals("chain " + chain.get(2), map.get(chain.get(2)));
+        assertEquals("neighbor", map.get(neighbor));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    void removingFromTheMiddleOfAProbeChainKeepsTheRestReachable() {
+        List<Long> chain = keysWithHome(7, 4);
+        LongObjectMap<String> map = new LongObjectMap<>(8);
+        for (long key : chain) {
+            map.put(key, "chain " + key);
+        }
+
+        map.remove(chain.get(1));
+        map.remove(chain.get(2));
+
+        assertNull(map.get(chain.get(1)));
+        assertNull(map.get(chain.get(2)));
+        assertEquals("chain " + chain.get(0), map.get(chain.get(0)));
+        assertEquals("chain " + chain.get(3), map.get(chain.get(3)));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void chainWrappingPastTheEndSurvivesRemoval() {
+        List<Long> chain = keysWithHome(CAPACITY - 1, 3); // Second and third entries wrap to slots 0 and 1
+        LongObjectMap<String> map = new LongObjectMap<>(8);
+        for (long key : chain) {
+            map.put(key, "chain " + key);
+        }
+
+        map.remove(chain.get(0));
+
+        assertEquals("chain " + chain.get(1), map.get(chain.get(1)));
+        assertEquals("chain " + chain.get(2), map.get(chain.get(2)));
+        map.remove(chain.get(2));
+        assertEquals("chain " + chain.get(1), map.get(chain.get(1)));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void matchesAHashMapThroughPutsRemovesAndGrowth() {
+        Random random = new Random(42);
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            // Small key space, so removes often hit present keys and probe chains get long
+            long key = BlockKeys.blockKey(random.nextInt(40), random.nextInt(8) - 64, random.nextInt(40));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        int[] visited = new int[1];
+        map.forEach((key, value) -> {
+            assertEquals(expected.get(key), value);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+
+    @Test
+    void clearEmptiesTheMap() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+    }
+
+    // Distinct keys whose home slot in a 16 slot table is the given one
+    private static List<Long> keysWithHome(int home, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            if ((BlockKeys.mix(key) & (CAPACITY - 1)) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,154 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.type.Piston;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MovePlanCacheTest {
+
+    private final FakeWorld fakeWorld = new FakeWorld();
+    private final World world = fakeWorld.world();
+    private final MovePlanCache cache = new MovePlanCache(64);
+
+    @Test
+    void cachedPlanIsReturnedForTheSameMove() {
+        MovePlan plan = cachePush(0, 3, false);
+
+        assertSame(plan, cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+        assertNull(cache.get(world, pistonKey(0), BlockFace.EAST, false, moved(0, 3)), "no retract plan");
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void changeInsideTheFootprintDropsThePlan() {
+        cachePush(0, 3, false);
+
+        cache.invalidate(world, 4, 64, 0); // Destination of the last moved block
+
+        assertNull(cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+        assertEquals(1, cache.invalidations());
+        assertEquals(0, cache.cachedPistons());
+    }
+
+    @Test
+    void changeOutsideTheFootprintKeepsThePlan() {
+        MovePlan plan = cachePush(0, 3, false);
+
+        cache.invalidate(world, 5, 64, 0); // One past the last destination
+        cache.invalidate(world, 2, 65, 0); // Next to a moved block, only part of a selective footprint
+
+        assertSame(plan, cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+        assertEquals(0, cache.invalidations());
+    }
+
+    @Test
+    void selectiveFootprintIncludesNeighbors() {
+        cachePush(0, 3, true);
+
+        cache.invalidate(world, 2, 65, 0);
+
+        assertNull(cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+    }
+
+    @Test
+    void ownMovesAndOtherWorldsKeepThePlan() {
+        MovePlan plan = cachePush(0, 3, false);
+
+        cache.invalidate(world, 2, 64, 0, pistonKey(0));
+        cache.invalidate(new FakeWorld().world(), 2, 64, 0);
+
+        assertSame(plan, cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+    }
+
+    @Test
+    void changeInANeighboringAreaStripeDropsThePlan() {
+        cachePush(14, 3, false); // Piston at x=14, pushes into the next chunk
+
+        cache.invalidate(world, 18, 64, 0);
+
+        assertNull(cache.get(world, pistonKey(14), BlockFace.EAST, true, moved(14, 3)));
+        assertEquals(1, cache.invalidations());
+    }
+
+    @Test
+    void blockChangedWithoutAnEventIsAMiss() {
+        cachePush(0, 3, false);
+
+        fakeWorld.set(2, 64, 0, FakeBlockData.create(Material.SAND));
+
+        assertNull(cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+    }
+
+    @Test
+    void stateChangedWithoutAnEventIsAMiss() {
+        MoveBuffer buffer = pushBuffer(0, 3);
+        fakeWorld.set(2, 64, 0, FakeBlockData.create(Material.PISTON)); // A retracted piston in the row, facing north
+        buffer.data[1] = FakeBlockData.create(Material.PISTON);
+        cache.put(world, pistonKey(0), MovePlan.of(buffer, BlockFace.EAST, true, pistonKey(0), BlockKeys.blockKey(1, 64, 0), false));
+        assertNotNull(cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+
+        Piston turned = (Piston) FakeBlockData.create(Material.PISTON);
+        turned.setFacing(BlockFace.UP);
+        fakeWorld.set(2, 64, 0, turned); // Same type, different state (a debug stick, another plugin...)
+
+        assertNull(cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 3)));
+    }
+
+    @Test
+    void newPlanReplacesTheOldOneAndItsFootprint() {
+        cachePush(0, 3, false);
+        MovePlan shorter = cachePush(0, 2, false);
+
+        cache.invalidate(world, 4, 64, 0); // Only in the old plan's footprint
+
+        assertSame(shorter, cache.get(world, pistonKey(0), BlockFace.EAST, true, moved(0, 2)));
+        assertEquals(1, cache.cachedPistons());
+    }
+
+    // Plans and caches an east push of a stone row in front of a piston at (pistonX, 64, 0)
+    private MovePlan cachePush(int pistonX, int count, boolean selective) {
+        MoveBuffer buffer = pushBuffer(pistonX, count);
+        MovePlan plan = MovePlan.of(buffer, BlockFace.EAST, true, pistonKey(pistonX), BlockKeys.blockKey(pistonX + 1, 64, 0), selective);
+        cache.put(world, pistonKey(pistonX), plan);
+        return plan;
+    }
+
+    private MoveBuffer pushBuffer(int pistonX, int count) {
+        MoveBuffer buffer = new MoveBuffer();
+        buffer.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int x = pistonX + 1 + i;
+            fakeWorld.set(x, 64, 0, FakeBlockData.create(Material.STONE));
+            buffer.positions[i] = BlockKeys.blockKey(x, 64, 0);
+            buffer.data[i] = FakeBlockData.create(Material.STONE);
+            buffer.destinations[i] = BlockKeys.blockKey(x + 1, 64, 0);
+            buffer.flags[i] = MoveBuffer.PLACE;
+        }
+        buffer.size = count;
+        return buffer;
+    }
+
+    private List<Block> moved(int pistonX, int count) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            blocks.add(fakeWorld.blockAt(pistonX + 1 + i, 64, 0));
+        }
+        return blocks;
+    }
+
+    private static long pistonKey(int pistonX) {
+        return BlockKeys.blockKey(pistonX, 64, 0);
+    }
+}
@@ -0,0 +1,104 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.World;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PistonClockDetectorTest {
+
+    // Rates are measured over 200 ms windows. Divided at 100 extensions per second, back below 50, every 4th allowed.
+    private static final long WINDOW_MILLIS = 200;
+
+    private final World world = new FakeWorld().world();
+    private final long piston = BlockKeys.blockKey(10, 64, 10);
+
+    private static PistonClockDetector detector() {
+        return new PistonClockDetector(WINDOW_MILLIS / 1000.0, 100, 4, 1024, 60);
+    }
+
+    @Test
+    void slowPistonsAreNeverDivided() throws InterruptedException {
+        PistonClockDetector detector = detector();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(detector.allowExtend(world, piston, true));
+            Thread.sleep(WINDOW_MILLIS);
+        }
+        assertEquals(0, detector.dividedPistons());
+        assertEquals(1, detector.trackedPistons());
+    }
+
+    @Test
+    void fastPistonsOnlyExtendEveryNthTime() throws InterruptedException {
+        PistonClockDetector detector = detector();
+        assertEquals(100, extend(detector, piston, 100, true), "nothing is divided in the first window");
+        Thread.sleep(WINDOW_MILLIS);
+
+        // The first extension closes the window and enters divided mode
+        assertFalse(detector.allowExtend(world, piston, true));
+        assertFalse(detector.allowExtend(world, piston, true));
+        assertFalse(detector.allowExtend(world, piston, true));
+        assertTrue(detector.allowExtend(world, piston, true));
+        assertEquals(2, extend(detector, piston, 8, true));
+        assertEquals(1, detector.dividedPistons());
+        assertEquals(9, detector.skipped());
+    }
+
+    @Test
+    void otherPistonsAreNotDivided() throws InterruptedException {
+        PistonClockDetector detector = detector();
+        long neighbor = BlockKeys.blockKey(11, 64, 10);
+        extend(detector, piston, 100, true);
+        Thread.sleep(WINDOW_MILLIS);
+        extend(detector, piston, 1, true);
+
+        assertTrue(detector.allowExtend(world, neighbor, true));
+        assertTrue(detector.allowExtend(new FakeWorld().world(), piston, true), "same position in another world");
+        assertEquals(1, detector.dividedPistons());
+    }
+
+    @Test
+    void notEnforcedExtensionsAreCountedButAllowed() throws InterruptedException {
+        PistonClockDetector detector = detector();
+        extend(detector, piston, 100, false);
+        Thread.sleep(WINDOW_MILLIS);
+
+        assertEquals(8, extend(detector, piston, 8, false));
+        assertEquals(1, detector.dividedPistons(), "the mode is kept up to date");
+        assertEquals(0, detector.skipped());
+        assertFalse(detector.allowExtend(world, piston, true));
+    }
+
+    @Test
+    void dividedModeIsLeftOnlyBelowHalfTheThreshold() throws InterruptedException {
+        PistonClockDetector detector = detector();
+        extend(detector, piston, 100, false);
+        Thread.sleep(WINDOW_MILLIS);
+
+        // Enter divided mode and keep 19 extensions in the window: at most 95 per second, above the exit rate
+        // as long as the sleep doesn't overshoot by almost a whole window
+        extend(detector, piston, 19, false);
+        assertEquals(1, detector.dividedPistons());
+        Thread.sleep(WINDOW_MILLIS);
+        extend(detector, piston, 1, false);
+        assertEquals(1, detector.dividedPistons(), "between the exit and enter rate the mode is kept");
+
+        Thread.sleep(WINDOW_MILLIS);
+        extend(detector, piston, 1, false);
+        assertEquals(0, detector.dividedPistons());
+        assertTrue(detector.allowExtend(world, piston, true));
+    }
+
+    // Extends the piston the given number of times in a row, returns how many extensions were allowed
+    private int extend(PistonClockDetector detector, long pistonKey, int times, boolean enforce) {
+        int allowed = 0;
+        for (int i = 0; i < times; i++) {
+            if (detector.allowExtend(world, pistonKey, enforce)) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+}
@@ -0,0 +1,116 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PistonRulesTest {
+
+    private final FakeWorld fakeWorld = new FakeWorld();
+    private final World world = fakeWorld.world(); // Named "fake_world"
+
+    @Test
+    void withoutRulesTargetBlocksAreReducedAndTheRestThrottled() {
+        PistonRules rules = new PistonRules(EnumSet.of(Material.BAMBOO), List.of());
+
+        assertEquals(PistonAction.REDUCE, rules.decide(world, 0, 64, 0, Material.BAMBOO, List.of()));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.STONE, List.of()));
+    }
+
+    @Test
+    void firstMatchingRuleWins() {
+        PistonRules rules = new PistonRules(EnumSet.of(Material.BAMBOO), List.of(
+                rule(Set.of(), null, Set.of(Material.BAMBOO), PistonAction.CANCEL),
+                rule(Set.of(), null, Set.of(Material.BAMBOO, Material.CACTUS), PistonAction.VANILLA)));
+
+        assertEquals(PistonAction.CANCEL, rules.decide(world, 0, 64, 0, Material.BAMBOO, List.of()));
+        assertEquals(PistonAction.VANILLA, rules.decide(world, 0, 64, 0, Material.CACTUS, List.of()));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.STONE, List.of()), "no rule, not a target");
+    }
+
+    @Test
+    void emptyMaterialsMatchEverything() {
+        PistonRules rules = new PistonRules(Set.of(), List.of(rule(Set.of(), null, Set.of(), PistonAction.VANILLA)));
+
+        assertEquals(PistonAction.VANILLA, rules.decide(world, 0, 64, 0, Material.STONE, List.of()));
+        assertEquals(PistonAction.VANILLA, rules.decide(world, 0, 64, 0, Material.AIR, List.of()));
+    }
+
+    @Test
+    void worldRulesOnlyApplyInTheirWorlds() {
+        PistonRules rules = new PistonRules(Set.of(), List.of(
+                rule(Set.of("other_world"), null, Set.of(), PistonAction.CANCEL),
+                rule(Set.of("fake_world"), null, Set.of(Material.STONE), PistonAction.REDUCE)));
+
+        assertEquals(PistonAction.REDUCE, rules.decide(world, 0, 64, 0, Material.STONE, List.of()));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.DIRT, List.of()));
+    }
+
+    @Test
+    void areaRulesOnlyApplyInsideTheirBox() {
+        PistonRules.Box box = PistonRules.Box.of(10, 70, 10, 0, 60, 0); // Corners in any order
+        PistonRules rules = new PistonRules(Set.of(), List.of(
+                rule(Set.of(), box, Set.of(), PistonAction.CANCEL),
+                rule(Set.of(), null, Set.of(Material.STONE), PistonAction.REDUCE)));
+
+        assertEquals(PistonAction.CANCEL, rules.decide(world, 0, 60, 10, Material.STONE, List.of()), "box corner");
+        assertEquals(PistonAction.CANCEL, rules.decide(world, 5, 65, 5, Material.STONE, List.of()));
+        assertEquals(PistonAction.REDUCE, rules.decide(world, 11, 65, 5, Material.STONE, List.of()));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 5, 71, 5, Material.DIRT, List.of()));
+    }
+
+    @Test
+    void laterGlobalRuleLosesToEarlierAreaRule() {
+        PistonRules.Box box = PistonRules.Box.of(0, 0, 0, 15, 255, 15);
+        PistonRules rules = new PistonRules(Set.of(), List.of(
+                rule(Set.of(), box, Set.of(Material.STONE), PistonAction.VANILLA),
+                rule(Set.of(), null, Set.of(Material.STONE), PistonAction.CANCEL)));
+
+        assertEquals(PistonAction.VANILLA, rules.decide(world, 1, 64, 1, Material.STONE, List.of()));
+        assertEquals(PistonAction.CANCEL, rules.decide(world, 100, 64, 1, Material.STONE, List.of()));
+    }
+
+    @Test
+    void anyMovedBlockRulesLookAtTheMovedBlocks() {
+        PistonRules rules = new PistonRules(Set.of(), List.of(
+                new PistonRules.Rule(Set.of(), null, Set.of(Material.OBSERVER), true, PistonAction.CANCEL)));
+        List<Block> moved = blocks(Material.STONE, Material.OBSERVER);
+
+        assertEquals(PistonAction.CANCEL, rules.decide(world, 0, 64, 0, Material.STONE, moved));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.STONE, blocks(Material.STONE)));
+    }
+
+    @Test
+    void structureMovesNeedEnoughBlocksAndAStructureMaterial() {
+        PistonRules rules = new PistonRules(Set.of(), List.of(), EnumSet.of(Material.SLIME_BLOCK), 3);
+
+        assertEquals(PistonAction.REDUCE, rules.decide(world, 0, 64, 0, Material.STONE,
+                blocks(Material.STONE, Material.SLIME_BLOCK, Material.STONE)));
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.STONE,
+                blocks(Material.STONE, Material.SLIME_BLOCK)), "too few blocks");
+        assertEquals(PistonAction.THROTTLE, rules.decide(world, 0, 64, 0, Material.STONE,
+                blocks(Material.STONE, Material.STONE, Material.STONE)), "no structure material");
+    }
+
+    private static PistonRules.Rule rule(Set<String> worlds, PistonRules.Box area, Set<Material> materials, PistonAction action) {
+        return new PistonRules.Rule(worlds, area, materials, false, action);
+    }
+
+    // A row of blocks along x in the fake world
+    private List<Block> blocks(Material... materials) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < materials.length; i++) {
+            fakeWorld.set(i + 1, 64, 0, FakeBlockData.create(materials[i]));
+            blocks.add(fakeWorld.blockAt(i + 1, 64, 0));
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,154 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PistonTraceRoundTripTest {
+
+    private static final Logger LOGGER = Logger.getLogger("PistonUpdateReducer-test");
+
+    @TempDir
+    Path dir;
+
+    private final FakeWorld world = new FakeWorld();
+
+    @Test
+    void recordedEventsReadBackUnchanged() throws IOException {
+        File file = dir.resolve("trace.bin").toFile();
+        Block piston = piston(10, 64, -20, Material.STICKY_PISTON);
+        List<Block> moved = row(11, 64, -20, Material.BAMBOO, Material.SLIME_BLOCK, Material.STONE);
+
+        PistonTraceRecorder recorder = new PistonTraceRecorder(file, Long.MAX_VALUE, LOGGER);
+        recorder.record(piston, BlockFace.EAST, true, PistonAction.REDUCE, PistonAction.THROTTLE, Material.BAMBOO, moved);
+        recorder.record(piston, BlockFace.WEST, false, PistonAction.CANCEL, PistonAction.CANCEL, Material.AIR, List.of());
+        recorder.close();
+
+        PistonTraceReader.Trace trace = PistonTraceReader.read(file);
+        assertEquals(2, trace.events().size());
+        assertEquals(0, trace.unknownMaterials());
+
+        PistonTraceReader.Event extend = trace.events().get(0);
+        assertEquals("fake_world", extend.world());
+        assertEquals(BlockKeys.blockKey(10, 64, -20), extend.pistonKey());
+        assertEquals(BlockFace.EAST, extend.direction());
+        assertTrue(extend.extending());
+        assertTrue(extend.sticky());
+        assertEquals(PistonAction.REDUCE, extend.action());
+        assertEquals(PistonAction.THROTTLE, extend.outcome());
+        assertEquals(Material.BAMBOO, extend.trigger());
+        assertArrayEquals(new Material[]{Material.BAMBOO, Material.SLIME_BLOCK, Material.STONE}, extend.moved());
+        assertArrayEquals(new byte[]{1, 0, 0, 2, 0, 0, 3, 0, 0}, extend.offsets());
+
+        PistonTraceReader.Event retract = trace.events().get(1);
+        assertEquals(BlockFace.WEST, retract.direction());
+        assertFalse(retract.extending());
+        assertEquals(PistonAction.CANCEL, retract.action());
+        assertEquals(PistonAction.CANCEL, retract.outcome());
+        assertEquals(Material.AIR, retract.trigger());
+        assertEquals(0, retract.moved().length);
+        assertTrue(retract.nanos() >= extend.nanos());
+    }
+
+    @Test
+    void eventsSpanningManyBuffersAllReadBack() throws IOException {
+        File file = dir.resolve("large.bin").toFile();
+        Block piston = piston(0, 64, 0, Material.PISTON);
+        List<Block> moved = row(1, 64, 0, Material.STONE, Material.STONE, Material.STONE, Material.STONE, Material.STONE,
+                Material.STONE, Material.STONE, Material.STONE, Material.STONE, Material.STONE, Material.STONE, Material.OBSERVER);
+
+        PistonTraceRecorder recorder = new PistonTraceRecorder(file, Long.MAX_VALUE, LOGGER);
+        int recorded = 20_000; // Roughly 1.7 MB, several times the buffer size
+        for (int i = 0; i < recorded; i++) {
+            recorder.record(piston, BlockFace.EAST, (i & 1) == 0, PistonAction.THROTTLE, PistonAction.VANILLA, Material.STONE, moved);
+        }
+        recorder.close();
+
+        PistonTraceReader.Trace trace = PistonTraceReader.read(file);
+        // A slow disk may make the recorder drop events, but everything it counted must be in the file
+        assertEquals(recorded, recorder.events() + recorder.dropped());
+        assertEquals(recorder.events(), trace.events().size());
+        assertEquals(recorder.bytes(), file.length());
+        for (PistonTraceReader.Event event : trace.events()) {
+            assertEquals(12, event.moved().length);
+            assertEquals(Material.OBSERVER, event.moved()[11]);
+        }
+    }
+
+    @Test
+    void sizeLimitStopsRecording() throws IOException {
+        File file = dir.resolve("limited.bin").toFile();
+        Block piston = piston(0, 64, 0, Material.PISTON);
+        List<Block> moved = row(1, 64, 0, Material.STONE);
+
+        PistonTraceRecorder recorder = new PistonTraceRecorder(file, 1024, LOGGER);
+        for (int i = 0; i < 1000; i++) {
+            recorder.record(piston, BlockFace.EAST, true, PistonAction.REDUCE, PistonAction.REDUCE, Material.STONE, moved);
+        }
+        recorder.close();
+
+        assertTrue(recorder.events() < 1000);
+        assertTrue(file.length() <= 1024 + 64, "only events are checked against the limit, definitions may add a little");
+        assertEquals(recorder.events(), PistonTraceReader.read(file).events().size());
+    }
+
+    @Test
+    void truncatedLastRecordIsSkipped() throws IOException {
+        File file = dir.resolve("truncated.bin").toFile();
+        Block piston = piston(0, 64, 0, Material.PISTON);
+        List<Block> moved = row(1, 64, 0, Material.STONE, Material.STONE);
+
+        PistonTraceRecorder recorder = new PistonTraceRecorder(file, Long.MAX_VALUE, LOGGER);
+        for (int i = 0; i < 3; i++) {
+            recorder.record(piston, BlockFace.EAST, true, PistonAction.REDUCE, PistonAction.REDUCE, Material.STONE, moved);
+        }
+        recorder.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4); // Cut into the last event, as if the server stopped mid-write
+        }
+
+        assertEquals(2, PistonTraceReader.read(file).events().size());
+    }
+
+    @Test
+    void otherFilesAreRejected() throws IOException {
+        File file = dir.resolve("other.bin").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(0x1234_5678_9ABC_DEF0L);
+            raf.writeLong(0);
+        }
+
+        assertThrows(IOException.class, () -> PistonTraceReader.read(file));
+    }
+
+    private Block piston(int x, int y, int z, Material type) {
+        world.set(x, y, z, FakeBlockData.create(type));
+        return world.blockAt(x, y, z);
+    }
+
+    // Blocks along x starting at the given position
+    private List<Block> row(int x, int y, int z, Material... materials) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < materials.length; i++) {
+            world.set(x + i, y, z, FakeBlockData.create(materials[i]));
+            blocks.add(world.blockAt(x + i, y, z));
+        }
+        return blocks;
+    }
+}
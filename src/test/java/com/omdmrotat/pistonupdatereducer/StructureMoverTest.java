@@ -0,0 +1,206 @@
+package com.omdmrotat.pistonupdatereducer;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StructureMoverTest {
+
+    private final FakeWorld fakeWorld = new FakeWorld();
+    private final World world = fakeWorld.world();
+    private final BlockData air = FakeBlockData.create(Material.AIR);
+    private final MoveBuffer buffer = new MoveBuffer();
+
+    @Test
+    void rowPushUpdatesOnlyFromTheChangedEnds() {
+        // Piston at x=1 facing east pushes x=2..4: x=3 and x=4 get the same stone back, only the ends change
+        long pistonKey = key(1, 64, 0);
+        long headKey = key(2, 64, 0);
+        List<Block> moved = place(Material.STONE, key(2, 64, 0), key(3, 64, 0), key(4, 64, 0));
+
+        Set<Long> edges = move(moved, BlockFace.EAST, pistonKey, headKey);
+
+        assertEquals(Set.of(key(2, 64, 0), key(5, 64, 0)), edges);
+        assertEquals(9, buffer.updateSize, "5 around the new end, 4 around the head spot without the piston");
+        for (int i = 0; i < buffer.updateSize; i++) {
+            assertFalse(buffer.updateTargets[i] == pistonKey);
+        }
+    }
+
+    @Test
+    void everyEnvelopePositionIsNextToAnEdgeWrite() {
+        // Slime and honey checkerboard cube pushed up, so every destination changes state
+        long pistonKey = key(1, 63, 1);
+        long headKey = key(1, 64, 1);
+        List<Block> moved = new ArrayList<>();
+        for (int x = 0; x < 3; x++) {
+            for (int y = 64; y < 67; y++) {
+                for (int z = 0; z < 3; z++) {
+                    moved.addAll(place((x + y + z) % 2 == 0 ? Material.SLIME_BLOCK : Material.HONEY_BLOCK, key(x, y, z)));
+                }
+            }
+        }
+
+        Set<Long> edges = move(moved, BlockFace.UP, pistonKey, headKey);
+
+        // The cube's core changes state too, but has no outside neighbor to update
+        assertFalse(edges.contains(key(1, 65, 1)));
+        assertFalse(edges.contains(key(1, 66, 1)));
+    }
+
+    @Test
+    void retractedStructureSkipsThePiston() {
+        // Sticky piston at x=0 facing east pulls an L of blocks back into the head spot
+        long pistonKey = key(0, 64, 0);
+        long headKey = key(1, 64, 0);
+        List<Block> moved = new ArrayList<>();
+        moved.addAll(place(Material.SLIME_BLOCK, key(2, 64, 0)));
+        moved.addAll(place(Material.STONE, key(2, 65, 0), key(3, 64, 0)));
+
+        move(moved, BlockFace.WEST, pistonKey, headKey);
+
+        for (int i = 0; i < buffer.updateSize; i++) {
+            assertFalse(buffer.updateTargets[i] == pistonKey);
+        }
+    }
+
+    @Test
+    void movesWithoutChangesNeedNoEdges() {
+        long pistonKey = key(0, 64, 0);
+        long headKey = key(1, 64, 0);
+        buffer.capture(world, place(Material.STONE, key(1, 64, 0), key(2, 64, 0)));
+        for (int i = 0; i < buffer.size; i++) {
+            buffer.addWrite(buffer.positions[i], FakeBlockData.create(Material.STONE)); // Put back as they are
+        }
+        buffer.sortWritesBySection();
+
+        Set<Long> written = new HashSet<>();
+        StructureMover.apply(buffer, world, pistonKey, headKey, recordingWriter(written));
+
+        assertEquals(0, buffer.updateSize);
+        assertEquals(2, written.size());
+    }
+
+    /**
+     * Plans the move like PistonHandler#collectWrites (each destination gets the block moving in, sources nothing
+     * moves into become air), applies it and checks the edge writes against the envelope worked out here.
+     *
+     * @return Positions of the edge writes, the ones applied with physics.
+     */
+    private Set<Long> move(List<Block> moved, BlockFace direction, long pistonKey, long headKey) {
+        buffer.capture(world, moved);
+        for (int i = 0; i < buffer.size; i++) {
+            long from = buffer.positions[i];
+            buffer.addWrite(BlockKeys.blockKey(BlockKeys.blockX(from) + direction.getModX(),
+                    BlockKeys.blockY(from) + direction.getModY(), BlockKeys.blockZ(from) + direction.getModZ()), buffer.data[i]);
+        }
+        for (int i = 0; i < buffer.size; i++) {
+            if (!buffer.isWritten(buffer.positions[i])) {
+                buffer.addWrite(buffer.positions[i], air);
+            }
+        }
+        buffer.sortWritesBySection();
+
+        // What each write changes, before it is applied
+        Set<Long> writes = new HashSet<>();
+        Set<Long> changed = new HashSet<>();
+        for (int i = 0; i < buffer.writeSize; i++) {
+            long position = buffer.writePositions[i];
+            writes.add(position);
+            if (!dataAt(position).equals(buffer.writeData[i])) {
+                changed.add(position);
+            }
+        }
+        Set<Long> envelope = new HashSet<>();
+        for (long position : changed) {
+            for (long neighbor : neighbors(position)) {
+                if (!writes.contains(neighbor) && neighbor != pistonKey && neighbor != headKey) {
+                    envelope.add(neighbor);
+                }
+            }
+        }
+
+        Set<Long> written = new HashSet<>();
+        StructureMover.apply(buffer, world, pistonKey, headKey, recordingWriter(written));
+
+        Set<Long> edges = new HashSet<>(writes);
+        edges.removeAll(written);
+        assertEquals(envelope, positions(buffer.updateTargets, buffer.updateSize));
+        assertTrue(changed.containsAll(edges), "only writes that change a block carry updates");
+        for (long position : envelope) {
+            assertTrue(neighbors(position).stream().anyMatch(edges::contains), "no edge write next to " + position);
+        }
+        for (long edge : edges) {
+            assertTrue(neighbors(edge).stream().anyMatch(envelope::contains), "edge write " + edge + " reaches nothing");
+        }
+        for (int i = 0; i < buffer.writeSize; i++) {
+            assertEquals(buffer.writeData[i], dataAt(buffer.writePositions[i]));
+        }
+        return edges;
+    }
+
+    // Writes without physics like the Bukkit writer, remembering the positions
+    private static BlockWriter recordingWriter(Set<Long> written) {
+        return new BlockWriter() {
+            @Override
+            public void write(World world, MoveBuffer buffer, int[] order, int count) {
+                for (int i = 0; i < count; i++) {
+                    written.add(buffer.writePositions[order[i]]);
+                }
+                BukkitBlockWriter.INSTANCE.write(world, buffer, order, count);
+            }
+
+            @Override
+            public String name() {
+                return "RECORDING";
+            }
+        };
+    }
+
+    private List<Block> place(Material type, long... positions) {
+        List<Block> blocks = new ArrayList<>();
+        for (long position : positions) {
+            int x = BlockKeys.blockX(position);
+            int y = BlockKeys.blockY(position);
+            int z = BlockKeys.blockZ(position);
+            fakeWorld.set(x, y, z, FakeBlockData.create(type));
+            blocks.add(fakeWorld.blockAt(x, y, z));
+        }
+        return blocks;
+    }
+
+    private BlockData dataAt(long position) {
+        return fakeWorld.dataAt(BlockKeys.blockX(position), BlockKeys.blockY(position), BlockKeys.blockZ(position));
+    }
+
+    private static List<Long> neighbors(long position) {
+        int x = BlockKeys.blockX(position);
+        int y = BlockKeys.blockY(position);
+        int z = BlockKeys.blockZ(position);
+        return List.of(key(x + 1, y, z), key(x - 1, y, z), key(x, y + 1, z), key(x, y - 1, z), key(x, y, z + 1), key(x, y, z - 1));
+    }
+
+    private static Set<Long> positions(long[] keys, int count) {
+        Set<Long> set = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(keys[i]);
+        }
+        return set;
+    }
+
+    private static long key(int x, int y, int z) {
+        return BlockKeys.blockKey(x, y, z);
+    }
+}